@@ -0,0 +1,96 @@
+package com.backgroundworker;
+
+import android.content.Context;
+import android.os.Build;
+import android.util.Log;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Collects the measurements of a benchmark suite and writes them to benchmarks/<suite>.json, latencies are
+ * summarized in microseconds.
+ * The file goes to the additional test output directory, which the android gradle plugin copies to
+ * build/outputs/connected_android_test_additional_output after connectedAndroidTest, or to the test app's
+ * external files directory when the runner doesn't provide one.
+ */
+class BenchmarkResults {
+
+    private static final String TAG = "BenchmarkResults";
+
+    private final String suite;
+    private final JSONObject results = new JSONObject();
+
+    BenchmarkResults(String suite) {
+        this.suite = suite;
+    }
+
+    /**
+     * @param name the measurement's name
+     * @param nanos how long each operation took, in nanoseconds
+     */
+    synchronized void latencies(String name, long[] nanos) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        long total = 0;
+        for (long latency : sorted) total += latency;
+        try {
+            results.put(name, new JSONObject()
+                    .put("samples", sorted.length)
+                    .put("meanUs", sorted.length > 0 ? total / sorted.length / 1000.0 : 0)
+                    .put("p50Us", percentile(sorted, 0.5))
+                    .put("p90Us", percentile(sorted, 0.9))
+                    .put("p99Us", percentile(sorted, 0.99)));
+        } catch (JSONException e) { throw new IllegalStateException(e); }
+    }
+
+    /**
+     * @param name the measurement's name
+     * @param operations how many operations ran
+     * @param nanos how long all of them took, in nanoseconds
+     */
+    synchronized void throughput(String name, int operations, long nanos) {
+        try {
+            results.put(name, new JSONObject()
+                    .put("operations", operations)
+                    .put("totalMs", nanos / 1e6)
+                    .put("opsPerSecond", operations / (nanos / 1e9)));
+        } catch (JSONException e) { throw new IllegalStateException(e); }
+    }
+
+    /**
+     * Writes every measurement taken so far, along with the device they were taken on
+     * @return the file written
+     */
+    synchronized File write(Context context) throws IOException, JSONException {
+        String additionalOutput = InstrumentationRegistry.getArguments().getString("additionalTestOutputDir");
+        File dir = additionalOutput != null ? new File(additionalOutput) : context.getExternalFilesDir(null);
+        if(dir == null) dir = context.getFilesDir();
+        File file = new File(dir, "benchmarks/" + suite + ".json");
+        if(!file.getParentFile().exists() && !file.getParentFile().mkdirs()) throw new IOException("could not create " + file.getParent());
+        JSONObject report = new JSONObject()
+                .put("suite", suite)
+                .put("device", Build.MANUFACTURER + " " + Build.MODEL)
+                .put("sdk", Build.VERSION.SDK_INT)
+                .put("timestamp", System.currentTimeMillis())
+                .put("results", results);
+        try (FileWriter writer = new FileWriter(file)) {
+            writer.write(report.toString(2));
+        }
+        Log.i(TAG, suite + " results written to " + file);
+        return file;
+    }
+
+    private static double percentile(long[] sorted, double percentile) {
+        if(sorted.length == 0) return 0;
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * percentile))] / 1000.0;
+    }
+
+}
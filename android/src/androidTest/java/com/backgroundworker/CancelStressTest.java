@@ -0,0 +1,99 @@
+package com.backgroundworker;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.facebook.react.bridge.JavaOnlyArray;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Cancelling a whole queue must not leave threads behind, every cancel callback runs on the module's executor
+ */
+@RunWith(AndroidJUnit4.class)
+public class CancelStressTest {
+
+    private static final int WORKS = 1000;
+    // room for threads the runtime starts on its own while the test runs, like the finalizer watchdog
+    private static final int SLACK = 4;
+
+    private BackgroundWorkerModule module;
+
+    @Before
+    public void setUp() {
+        module = TestHarness.createModule();
+    }
+
+    @After
+    public void tearDown() {
+        module.onCatalystInstanceDestroy();
+    }
+
+    @Test
+    public void cancellingOneByOneKeepsThreadCountFlat() throws InterruptedException {
+
+        TestHarness.registerWaitingWorker(module, "cancelOneByOne");
+        List<String> ids = enqueue("cancelOneByOne", WORKS + 1);
+
+        // the first cancel starts the callback executor's thread, it is part of the baseline
+        TestHarness.TestPromise warmup = new TestHarness.TestPromise();
+        module.cancel(ids.remove(0), warmup.promise);
+        warmup.await();
+        int before = TestHarness.threadCount();
+
+        List<TestHarness.TestPromise> cancelled = new ArrayList<>(WORKS);
+        for (String id : ids) {
+            TestHarness.TestPromise p = new TestHarness.TestPromise();
+            module.cancel(id, p.promise);
+            cancelled.add(p);
+        }
+        for (TestHarness.TestPromise p : cancelled) p.await();
+
+        int after = TestHarness.threadCount();
+        assertTrue("threads went from " + before + " to " + after, after - before <= SLACK);
+
+    }
+
+    @Test
+    public void bulkCancellingKeepsThreadCountFlat() throws InterruptedException {
+
+        TestHarness.registerWaitingWorker(module, "cancelInBulk");
+        List<String> ids = enqueue("cancelInBulk", WORKS);
+
+        TestHarness.TestPromise warmup = new TestHarness.TestPromise();
+        module.cancel(ids.remove(0), warmup.promise);
+        warmup.await();
+        int before = TestHarness.threadCount();
+
+        TestHarness.TestPromise many = new TestHarness.TestPromise();
+        module.cancelMany(JavaOnlyArray.from(ids.subList(0, ids.size() / 2)), many.promise);
+        many.await();
+
+        TestHarness.TestPromise all = new TestHarness.TestPromise();
+        module.cancelAll("cancelInBulk", all.promise);
+        all.await();
+
+        int after = TestHarness.threadCount();
+        assertTrue("threads went from " + before + " to " + after, after - before <= SLACK);
+
+    }
+
+    private List<String> enqueue(String worker, int works) {
+        List<String> ids = new ArrayList<>(works);
+        for (int i = 0; i < works; i++) {
+            String id = module.enqueueSync(worker, "{\"index\":" + i + "}", null);
+            assertNotNull(id);
+            ids.add(id);
+        }
+        return ids;
+    }
+
+}
@@ -0,0 +1,133 @@
+package com.backgroundworker;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.work.ListenableWorker.Result;
+
+import org.json.JSONException;
+import org.junit.AfterClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import io.reactivex.Single;
+import io.reactivex.SingleEmitter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Completion latency of the CompletionRegistry, which resolves a work straight from the thread that received its
+ * result, against the broadcast round-trip it replaced, from the result being sent to the work's Single resolving.
+ * Results are written to benchmarks/completion.json, see BenchmarkResults.
+ */
+@RunWith(AndroidJUnit4.class)
+public class CompletionBenchmark {
+
+    private static final int WARMUP = 1000;
+    private static final int WORKS = 10000;
+
+    private static final BenchmarkResults results = new BenchmarkResults("completion");
+
+    /**
+     * The path the registry replaced, receivers registered by action and never unregistered, and every
+     * result delivered through a single looper thread, like LocalBroadcastManager did with the main looper
+     */
+    private static class BroadcastBaseline {
+
+        private final HashMap<String, List<SingleEmitter<Result>>> receivers = new HashMap<>();
+        private final ExecutorService looper = Executors.newSingleThreadExecutor();
+
+        void register(String action, SingleEmitter<Result> emitter) {
+            synchronized (receivers) {
+                List<SingleEmitter<Result>> matching = receivers.get(action);
+                if(matching == null) receivers.put(action, matching = new ArrayList<>());
+                matching.add(emitter);
+            }
+        }
+
+        void send(String action) {
+            List<SingleEmitter<Result>> matching;
+            synchronized (receivers) {
+                matching = new ArrayList<>(receivers.get(action));
+            }
+            looper.execute(() -> {
+                for (SingleEmitter<Result> emitter : matching) emitter.onSuccess(Result.success());
+            });
+        }
+
+        void shutdown() {
+            looper.shutdown();
+        }
+
+    }
+
+    @AfterClass
+    public static void writeResults() throws IOException, JSONException {
+        results.write(TestHarness.getContext());
+    }
+
+    @Test
+    public void registry() throws InterruptedException {
+        measureRegistry(WARMUP);
+        results.latencies("registry", measureRegistry(WORKS));
+        assertEquals(0, CompletionRegistry.size());
+    }
+
+    @Test
+    public void broadcast() throws InterruptedException {
+        BroadcastBaseline baseline = new BroadcastBaseline();
+        measureBaseline(baseline, WARMUP);
+        results.latencies("broadcast", measureBaseline(baseline, WORKS));
+        baseline.shutdown();
+    }
+
+    /**
+     * @return how long each work took from its result being sent to its Single being resolved, in nanoseconds
+     */
+    private static long[] measureRegistry(int works) throws InterruptedException {
+        long[] latencies = new long[works];
+        for (int i = 0; i < works; i++) {
+            String id = "latency" + i;
+            long[] resolvedAt = { 0 };
+            CountDownLatch latch = new CountDownLatch(1);
+            Single.<Result>create(emitter -> CompletionRegistry.register(id, 0, emitter, (value, result) -> Result.success()))
+                    .subscribe(result -> {
+                        resolvedAt[0] = System.nanoTime();
+                        latch.countDown();
+                    });
+            long sentAt = System.nanoTime();
+            CompletionRegistry.complete(id, 0, null, "success");
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+            latencies[i] = resolvedAt[0] - sentAt;
+        }
+        return latencies;
+    }
+
+    private static long[] measureBaseline(BroadcastBaseline baseline, int works) throws InterruptedException {
+        long[] latencies = new long[works];
+        for (int i = 0; i < works; i++) {
+            String action = "latency" + i + "result";
+            long[] resolvedAt = { 0 };
+            CountDownLatch latch = new CountDownLatch(1);
+            Single.<Result>create(emitter -> baseline.register(action, emitter))
+                    .subscribe(result -> {
+                        resolvedAt[0] = System.nanoTime();
+                        latch.countDown();
+                    });
+            long sentAt = System.nanoTime();
+            baseline.send(action);
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+            latencies[i] = resolvedAt[0] - sentAt;
+        }
+        return latencies;
+    }
+
+}
@@ -0,0 +1,225 @@
+package com.backgroundworker;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+import androidx.work.WorkInfo;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Hammers the module and its stores from many threads at once, the way react methods, works and JS callbacks
+ * reach them in an app, every work must be enqueued exactly once and every stored payload must read back whole.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ConcurrencyStressTest {
+
+    private static final int THREADS = 8;
+    private static final int WORKS = 100;
+    // big enough to go through the PayloadStore, and to roll its segments over while the threads write
+    private static final int PAYLOAD_SIZE = 8 * 1024;
+    // how long a leaked observer gets to emit the cancellation of its work
+    private static final long LEAK_GRACE = 500;
+
+    private BackgroundWorkerModule module;
+    private final ExecutorService threads = Executors.newFixedThreadPool(THREADS);
+
+    @Before
+    public void setUp() {
+        module = TestHarness.createModule();
+    }
+
+    @After
+    public void tearDown() {
+        threads.shutdownNow();
+        Emitter.setTarget(null);
+        module.onCatalystInstanceDestroy();
+    }
+
+    @Test
+    public void concurrentEnqueuesOfStoredPayloads() throws Exception {
+
+        TestHarness.registerWaitingWorker(module, "stressStored");
+        Map<String, String> payloads = new ConcurrentHashMap<>();
+
+        run(thread -> {
+            for (int i = 0; i < WORKS; i++) {
+                String payload = payload(thread + "-" + i, PAYLOAD_SIZE);
+                String id = enqueue("stressStored", payload);
+                assertTrue("id " + id + " was handed out twice", payloads.put(id, payload) == null);
+            }
+        });
+        assertEquals(THREADS * WORKS, payloads.size());
+
+        PayloadStore store = PayloadStore.get(TestHarness.getContext());
+        List<WorkInfo> infos = WorkManagerConfiguration.getWorkManager(TestHarness.getContext()).getWorkInfosByTag("stressStored").get();
+        assertEquals(THREADS * WORKS, infos.size());
+        for (WorkInfo info : infos) {
+            String handle = null;
+            for (String tag : info.getTags()) if(tag.startsWith(PayloadStore.HANDLE_TAG)) handle = tag.substring(PayloadStore.HANDLE_TAG.length());
+            assertNotNull("work " + info.getId() + " has no stored payload", handle);
+            assertEquals(payloads.get(info.getId().toString()), store.read(handle));
+        }
+
+        cancelAll("stressStored");
+
+    }
+
+    @Test
+    public void concurrentPutsAndFlushesReadBackWhole() throws Exception {
+
+        PayloadStore store = PayloadStore.get(TestHarness.getContext());
+        Map<String, String> handles = new ConcurrentHashMap<>();
+
+        run(thread -> {
+            for (int i = 0; i < WORKS; i++) {
+                String payload = payload(thread + "-" + i, PAYLOAD_SIZE);
+                String handle = store.put(payload);
+                // half of the threads read their payload back before it is synced
+                if(thread % 2 == 0) assertEquals(payload, store.read(handle));
+                store.flush();
+                handles.put(handle, payload);
+            }
+        });
+        assertEquals(THREADS * WORKS, handles.size());
+
+        for (Map.Entry<String, String> entry : handles.entrySet()) {
+            assertEquals(entry.getValue(), store.read(entry.getKey()));
+            store.release(entry.getKey());
+        }
+
+    }
+
+    @Test
+    public void concurrentBatchedEnqueues() throws Exception {
+
+        TestHarness.registerWaitingWorker(module, "stressBatched", "maxBatchSize", 10);
+        // the batch store outlives the test, a previous run must not count
+        cancelAll("stressBatched");
+        Set<String> ids = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+        run(thread -> {
+            for (int i = 0; i < WORKS; i++) {
+                String id = enqueue("stressBatched", "{\"index\":" + i + "}");
+                assertTrue("id " + id + " was handed out twice", ids.add(id));
+            }
+        });
+
+        assertEquals(Integer.valueOf(THREADS * WORKS), BatchStore.depths(TestHarness.getContext()).get("stressBatched"));
+        for (String id : ids) assertNotNull("work " + id + " was lost", BatchStore.find(TestHarness.getContext(), id));
+
+        cancelAll("stressBatched");
+
+    }
+
+    @Test
+    public void concurrentListeners() throws Exception {
+
+        TestHarness.registerWaitingWorker(module, "stressListeners");
+        List<String> ids = new ArrayList<>(WORKS);
+        for (int i = 0; i < WORKS; i++) ids.add(module.enqueueSync("stressListeners", "{}", null));
+
+        Set<String> heard = Collections.newSetFromMap(new ConcurrentHashMap<>());
+        CountDownLatch allHeard = new CountDownLatch(1);
+        Emitter.setTarget((event, data) -> {
+            if(!event.endsWith("info")) return;
+            heard.add(event.substring(0, event.length() - 4));
+            if(heard.size() == WORKS) allHeard.countDown();
+        });
+
+        // every thread listens to every work and stops listening, on the same ids at once
+        run(thread -> {
+            for (String id : ids) {
+                module.addListener(id);
+                if(thread % 2 == 0) module.removeListener(id);
+            }
+        });
+        assertTrue("only " + heard.size() + " works were heard of", allHeard.await(30, TimeUnit.SECONDS));
+
+        run(thread -> {
+            for (String id : ids) module.removeListener(id);
+        });
+        // the observers are removed on the main thread
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync();
+
+        // once every listener is gone, no change of the works reaches JS anymore
+        Set<String> leaked = Collections.newSetFromMap(new ConcurrentHashMap<>());
+        Emitter.setTarget((event, data) -> {
+            if(event.endsWith("info")) leaked.add(event.substring(0, event.length() - 4));
+        });
+        cancelAll("stressListeners");
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync();
+        Thread.sleep(LEAK_GRACE);
+        assertTrue(leaked.size() + " works are still observed", leaked.isEmpty());
+
+    }
+
+    private interface Task {
+        void run(int thread) throws Exception;
+    }
+
+    /**
+     * Runs the task on every thread, all of them start at the same time
+     */
+    private void run(Task task) throws Exception {
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>(THREADS);
+        for (int i = 0; i < THREADS; i++) {
+            int thread = i;
+            futures.add(threads.submit(() -> {
+                start.await();
+                task.run(thread);
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> future : futures) future.get(120, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stored and batched payloads are never enqueued synchronously, they go through enqueue
+     * @return the work's id
+     */
+    private String enqueue(String worker, String payload) throws InterruptedException {
+        TestHarness.TestPromise enqueued = new TestHarness.TestPromise();
+        module.enqueue(worker, payload, null, enqueued.promise);
+        String id = (String) enqueued.await();
+        assertNotNull(id);
+        return id;
+    }
+
+    private void cancelAll(String worker) throws InterruptedException {
+        TestHarness.TestPromise cancelled = new TestHarness.TestPromise();
+        module.cancelAll(worker, cancelled.promise);
+        cancelled.await();
+    }
+
+    /**
+     * @return a JSON string of exactly size characters, unique to the key
+     */
+    private static String payload(String key, int size) {
+        StringBuilder payload = new StringBuilder(size).append("\"").append(key).append(UUID.randomUUID());
+        while (payload.length() < size - 1) payload.append('x');
+        return payload.append("\"").toString();
+    }
+
+}
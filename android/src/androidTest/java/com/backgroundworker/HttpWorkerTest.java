@@ -0,0 +1,164 @@
+package com.backgroundworker;
+
+import android.os.Bundle;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.work.Data;
+import androidx.work.ListenableWorker;
+import androidx.work.testing.TestListenableWorkerBuilder;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.util.Collections;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Runs HttpWorker's works against a local server, each test registers a native worker pointing at it
+ * and runs one attempt of a work straight through doWork.
+ */
+@RunWith(AndroidJUnit4.class)
+public class HttpWorkerTest {
+
+    private BackgroundWorkerModule module;
+    private final MockWebServer server = new MockWebServer();
+
+    @Before
+    public void setUp() throws IOException {
+        module = TestHarness.createModule();
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.shutdown();
+        module.onCatalystInstanceDestroy();
+    }
+
+    @Test
+    public void successfulResponseSucceeds() throws Exception {
+
+        WorkerRegistry.Definition worker = register("httpSuccess");
+        server.enqueue(new MockResponse().setResponseCode(200).setBody("ok"));
+
+        HttpWorker work = build(worker, inputData(worker).putString("payload", "{\"a\":1}"), 0);
+        assertResult(ListenableWorker.Result.success(), work.doWork());
+
+        RecordedRequest request = server.takeRequest();
+        assertEquals("POST", request.getMethod());
+        assertEquals("{\"a\":1}", request.getBody().readUtf8());
+
+        Bundle info = ResultStore.get(TestHarness.getContext()).getInfo(work.getId().toString());
+        assertNotNull(info);
+        assertEquals("succeeded", info.getString("state"));
+        assertEquals("{\"status\":200,\"body\":\"ok\"}", info.getString("value"));
+
+    }
+
+    @Test
+    public void retryOnStatusRetries() throws Exception {
+
+        WorkerRegistry.Definition worker = register("httpRetry", "retryOn", "503");
+        server.enqueue(new MockResponse().setResponseCode(503));
+
+        assertResult(ListenableWorker.Result.retry(), build(worker, inputData(worker).putString("payload", "{}"), 0).doWork());
+
+    }
+
+    @Test
+    public void otherErrorStatusFails() throws Exception {
+
+        WorkerRegistry.Definition worker = register("httpFailure", "retryOn", "503");
+        server.enqueue(new MockResponse().setResponseCode(400));
+
+        assertResult(ListenableWorker.Result.failure(), build(worker, inputData(worker).putString("payload", "{}"), 0).doWork());
+
+    }
+
+    @Test
+    public void retryPastMaxAttemptsFails() throws Exception {
+
+        WorkerRegistry.Definition worker = register("httpOutOfAttempts", "retryOn", "503", "maxAttempts", 2);
+        server.enqueue(new MockResponse().setResponseCode(503));
+
+        assertResult(ListenableWorker.Result.failure(), build(worker, inputData(worker).putString("payload", "{}"), 1).doWork());
+
+    }
+
+    @Test
+    public void storedPayloadIsStreamed() throws Exception {
+
+        WorkerRegistry.Definition worker = register("httpStored");
+        server.enqueue(new MockResponse().setResponseCode(200));
+
+        StringBuilder payload = new StringBuilder("\"");
+        while (payload.length() < 4 * PayloadStore.INLINE_LIMIT) payload.append('x');
+        payload.append("\"");
+        PayloadStore store = PayloadStore.get(TestHarness.getContext());
+        String handle = store.put(payload.toString());
+        store.flush();
+
+        assertResult(ListenableWorker.Result.success(), build(worker, inputData(worker).putString("payloadRef", handle), 0).doWork());
+        assertEquals(payload.toString(), server.takeRequest().getBody().readUtf8());
+
+    }
+
+    /**
+     * No attempt can bring a payload whose segment was deleted back, the work fails instead of retrying forever
+     */
+    @Test
+    public void missingStoredPayloadFails() throws Exception {
+
+        WorkerRegistry.Definition worker = register("httpMissing");
+
+        assertResult(ListenableWorker.Result.failure(), build(worker, inputData(worker).putString("payloadRef", Integer.MAX_VALUE + ":0"), 0).doWork());
+        assertEquals(0, server.getRequestCount());
+
+    }
+
+    /**
+     * Registers a native worker that sends its works to the server
+     * @param options extra keys and values of the worker definition
+     */
+    private WorkerRegistry.Definition register(String name, Object... options) throws InterruptedException {
+        Object[] _options = new Object[options.length + 4];
+        _options[0] = "type";
+        _options[1] = "native";
+        _options[2] = "url";
+        _options[3] = server.url("/" + name).toString();
+        System.arraycopy(options, 0, _options, 4, options.length);
+        TestHarness.registerWorker(module, name, null, _options);
+        WorkerRegistry.Definition worker = WorkerRegistry.get(TestHarness.getContext()).get(name);
+        assertNotNull(worker);
+        return worker;
+    }
+
+    private static Data.Builder inputData(WorkerRegistry.Definition worker) {
+        return BackgroundWorkerModule.getInputData(worker).putLong("enqueuedAt", System.currentTimeMillis());
+    }
+
+    private static HttpWorker build(WorkerRegistry.Definition worker, Data.Builder inputData, int runAttemptCount) {
+        return TestListenableWorkerBuilder.from(TestHarness.getContext(), HttpWorker.class)
+                .setInputData(inputData.build())
+                .setTags(Collections.singletonList(worker.name))
+                .setRunAttemptCount(runAttemptCount)
+                .build();
+    }
+
+    /**
+     * Results only differ by their kind here, their output data is checked through the ResultStore
+     */
+    private static void assertResult(ListenableWorker.Result expected, ListenableWorker.Result actual) {
+        assertEquals(expected.getClass(), actual.getClass());
+    }
+
+}
@@ -0,0 +1,113 @@
+package com.backgroundworker;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.json.JSONException;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * How long high and normal priority works take to reach JS while the low lane is saturated by a backlog that
+ * JS never answers, compared with the same works on an idle queue.
+ * Results are written to benchmarks/lanes.json, see BenchmarkResults.
+ */
+@RunWith(AndroidJUnit4.class)
+public class LanesBenchmark {
+
+    private static final int BACKLOG = 500;
+    private static final int SAMPLES = 100;
+
+    private static final BenchmarkResults results = new BenchmarkResults("lanes");
+
+    private BackgroundWorkerModule module;
+    // stands for the JS thread, it answers every work but the low priority ones
+    private final ExecutorService js = Executors.newSingleThreadExecutor();
+    private final ConcurrentHashMap<String, Long> emittedAt = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, CountDownLatch> latches = new ConcurrentHashMap<>();
+    private final AtomicInteger lowEmitted = new AtomicInteger();
+
+    @Before
+    public void setUp() throws InterruptedException {
+        module = TestHarness.createModule();
+        TestHarness.registerWorker(module, "benchLanes", null);
+        TestHarness.TestPromise limited = new TestHarness.TestPromise();
+        module.setLaneConcurrency(Lanes.LOW, 1, limited.promise);
+        limited.await();
+        Emitter.setTarget((event, data) -> {
+            if(!event.equals("benchLanes")) return;
+            String id = data.getString("id");
+            int attempt = data.getInt("attempt");
+            if(Lanes.LOW.equals(data.getString("priority"))) {
+                lowEmitted.incrementAndGet();
+                return;
+            }
+            emittedAt.put(id, System.nanoTime());
+            CountDownLatch latch = latches.get(id);
+            if(latch != null) latch.countDown();
+            js.execute(() -> module.result(id, null, "success", attempt));
+        });
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        TestHarness.TestPromise cancelled = new TestHarness.TestPromise();
+        module.cancelAll("benchLanes", cancelled.promise);
+        cancelled.await();
+        Emitter.setTarget(null);
+        js.shutdown();
+        module.onCatalystInstanceDestroy();
+    }
+
+    @AfterClass
+    public static void writeResults() throws IOException, JSONException {
+        results.write(TestHarness.getContext());
+    }
+
+    @Test
+    public void highPriorityLatencyUnderLowPriorityBacklog() throws InterruptedException {
+
+        results.latencies("highIdle", measure(Lanes.HIGH));
+        results.latencies("normalIdle", measure(Lanes.NORMAL));
+
+        for (int i = 0; i < BACKLOG; i++) assertNotNull(module.enqueueSync("benchLanes", "{}", Lanes.LOW));
+        // only one low work got a slot, the rest of the backlog waits on its lane
+        assertTrue("the low lane let " + lowEmitted.get() + " works through", lowEmitted.get() <= 1);
+
+        results.latencies("highSaturated", measure(Lanes.HIGH));
+        results.latencies("normalSaturated", measure(Lanes.NORMAL));
+
+    }
+
+    /**
+     * @return how long each work of the lane took from enqueue to reaching JS, in nanoseconds
+     */
+    private long[] measure(String lane) throws InterruptedException {
+        long[] latencies = new long[SAMPLES];
+        for (int i = 0; i < SAMPLES; i++) {
+            CountDownLatch latch = new CountDownLatch(1);
+            long enqueuedAt = System.nanoTime();
+            String id = module.enqueueSync("benchLanes", "{}", lane);
+            assertNotNull(id);
+            latches.put(id, latch);
+            if(emittedAt.containsKey(id)) latch.countDown();
+            assertTrue(lane + " work " + id + " never reached JS", latch.await(30, TimeUnit.SECONDS));
+            latencies[i] = emittedAt.get(id) - enqueuedAt;
+        }
+        return latencies;
+    }
+
+}
@@ -0,0 +1,260 @@
+package com.backgroundworker;
+
+import android.os.Bundle;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.work.Data;
+
+import com.facebook.react.bridge.JavaOnlyArray;
+import com.facebook.react.bridge.ReadableArray;
+
+import org.json.JSONException;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Baseline for the native paths of a work: enqueue, building its input Data, dispatch to JS and completion,
+ * and the info channel's fan-out. JS is replaced by a fake Emitter.Target, which answers works from its own
+ * thread like the JS thread would, and WorkManager by its test implementation.
+ * Results are written to benchmarks/nativePath.json, see BenchmarkResults.
+ */
+@RunWith(AndroidJUnit4.class)
+public class NativePathBenchmark {
+
+    private static final int WARMUP = 200;
+    private static final int ENQUEUES = 2000;
+    private static final int BUILDS = 1000;
+    private static final int ROUND_TRIPS = 200;
+    private static final int[] PAYLOAD_SIZES = { 16, 256, 1024, PayloadStore.INLINE_LIMIT, 8 * 1024, 64 * 1024 };
+    private static final int[] FAN_OUTS = { 1, 10, 100, 1000, 10000 };
+
+    private static final BenchmarkResults results = new BenchmarkResults("nativePath");
+
+    private BackgroundWorkerModule module;
+    // stands for the JS thread, it answers the works the fake target receives
+    private final ExecutorService js = Executors.newSingleThreadExecutor();
+
+    @Before
+    public void setUp() {
+        module = TestHarness.createModule();
+    }
+
+    @After
+    public void tearDown() {
+        Emitter.setTarget(null);
+        js.shutdown();
+        module.onCatalystInstanceDestroy();
+    }
+
+    @AfterClass
+    public static void writeResults() throws IOException, JSONException {
+        results.write(TestHarness.getContext());
+    }
+
+    @Test
+    public void enqueueThroughput() throws InterruptedException {
+
+        TestHarness.registerWaitingWorker(module, "benchEnqueue");
+        Emitter.setTarget((event, data) -> {});
+
+        for (int i = 0; i < WARMUP; i++) module.enqueueSync("benchEnqueue", payload(64), null);
+
+        long[] latencies = new long[ENQUEUES];
+        long start = System.nanoTime();
+        for (int i = 0; i < ENQUEUES; i++) {
+            long enqueuedAt = System.nanoTime();
+            assertNotNull(module.enqueueSync("benchEnqueue", payload(64), null));
+            latencies[i] = System.nanoTime() - enqueuedAt;
+        }
+        results.throughput("enqueue", ENQUEUES, System.nanoTime() - start);
+        results.latencies("enqueueLatency", latencies);
+
+        List<String> payloads = new ArrayList<>(Collections.nCopies(ENQUEUES, payload(64)));
+        TestHarness.TestPromise batch = new TestHarness.TestPromise();
+        start = System.nanoTime();
+        module.enqueueBatch("benchEnqueue", JavaOnlyArray.from(payloads), null, batch.promise);
+        batch.await();
+        results.throughput("enqueueBatch", ENQUEUES, System.nanoTime() - start);
+
+        TestHarness.TestPromise cancelled = new TestHarness.TestPromise();
+        module.cancelAll("benchEnqueue", cancelled.promise);
+        cancelled.await();
+
+    }
+
+    /**
+     * Builds the input Data of a work the way the module does, payloads over PayloadStore.INLINE_LIMIT
+     * are stored and only their handle goes in the Data
+     */
+    @Test
+    public void dataBuildCost() throws InterruptedException, IOException {
+
+        TestHarness.registerWaitingWorker(module, "benchData");
+        WorkerRegistry.Definition definition = WorkerRegistry.get(TestHarness.getContext()).get("benchData");
+        assertNotNull(definition);
+        PayloadStore store = PayloadStore.get(TestHarness.getContext());
+
+        for (int size : PAYLOAD_SIZES) {
+            String payload = payload(size);
+            List<String> handles = new ArrayList<>();
+            long[] latencies = new long[BUILDS];
+            for (int i = -WARMUP; i < BUILDS; i++) {
+                long start = System.nanoTime();
+                Data.Builder inputData = BackgroundWorkerModule.getInputData(definition).putLong("enqueuedAt", System.currentTimeMillis());
+                if(payload.length() > PayloadStore.INLINE_LIMIT) {
+                    String handle = store.put(payload);
+                    store.flush();
+                    inputData.putString("payloadRef", handle);
+                    handles.add(handle);
+                }
+                else inputData.putString("payload", payload);
+                assertNotNull(inputData.build());
+                if(i >= 0) latencies[i] = System.nanoTime() - start;
+            }
+            for (String handle : handles) store.release(handle);
+            results.latencies("dataBuild" + size, latencies);
+        }
+
+    }
+
+    /**
+     * Times each work from enqueue to its event reaching JS, and from JS sending its result to its listener
+     * seeing it succeed
+     */
+    @Test
+    public void completionRoundTrip() throws InterruptedException {
+
+        TestHarness.registerWorker(module, "benchCompletion", null);
+
+        ConcurrentHashMap<String, Long> emittedAt = new ConcurrentHashMap<>();
+        ConcurrentHashMap<String, Long> answeredAt = new ConcurrentHashMap<>();
+        ConcurrentHashMap<String, Long> succeededAt = new ConcurrentHashMap<>();
+        ConcurrentHashMap<String, CountDownLatch> latches = new ConcurrentHashMap<>();
+
+        Emitter.setTarget((event, data) -> {
+            long now = System.nanoTime();
+            if(event.equals("benchCompletion")) {
+                String id = data.getString("id");
+                int attempt = data.getInt("attempt");
+                emittedAt.put(id, now);
+                js.execute(() -> {
+                    answeredAt.put(id, System.nanoTime());
+                    module.result(id, "\"done\"", "success", attempt);
+                });
+            }
+            else if(event.endsWith("info") && "succeeded".equals(data.getString("state"))) {
+                String id = event.substring(0, event.length() - 4);
+                if(succeededAt.putIfAbsent(id, now) != null) return;
+                CountDownLatch latch = latches.get(id);
+                if(latch != null) latch.countDown();
+            }
+        });
+
+        long[] dispatch = new long[ROUND_TRIPS];
+        long[] completion = new long[ROUND_TRIPS];
+        long[] roundTrip = new long[ROUND_TRIPS];
+        for (int i = -WARMUP / 10; i < ROUND_TRIPS; i++) {
+            long enqueuedAt = System.nanoTime();
+            String id = module.enqueueSync("benchCompletion", payload(64), null);
+            assertNotNull(id);
+            CountDownLatch latch = new CountDownLatch(1);
+            latches.put(id, latch);
+            if(succeededAt.containsKey(id)) latch.countDown();
+            module.addListener(id);
+            assertTrue("work " + id + " did not complete", latch.await(30, TimeUnit.SECONDS));
+            module.removeListener(id);
+            if(i < 0) continue;
+            dispatch[i] = emittedAt.get(id) - enqueuedAt;
+            completion[i] = succeededAt.get(id) - answeredAt.get(id);
+            roundTrip[i] = succeededAt.get(id) - enqueuedAt;
+        }
+        results.latencies("dispatch", dispatch);
+        results.latencies("completion", completion);
+        results.latencies("roundTrip", roundTrip);
+
+    }
+
+    /**
+     * Times the info channel from subscribing to n works until all of their infos reached JS,
+     * and from cancelling them until all of their changes reached JS
+     */
+    @Test
+    public void listenerFanOut() throws InterruptedException {
+
+        TestHarness.registerWaitingWorker(module, "benchFanOut");
+
+        for (int works : FAN_OUTS) {
+
+            TestHarness.TestPromise enqueued = new TestHarness.TestPromise();
+            module.enqueueBatch("benchFanOut", JavaOnlyArray.from(Collections.nCopies(works, payload(64))), null, enqueued.promise);
+            ReadableArray _ids = (ReadableArray) enqueued.await();
+            assertNotNull(_ids);
+            List<String> ids = new ArrayList<>(works);
+            for (int i = 0; i < _ids.size(); i++) ids.add(_ids.getString(i));
+
+            CountDownLatch subscribed = expect(ids, "enqueued");
+            long start = System.nanoTime();
+            for (String id : ids) module.subscribe(id);
+            assertTrue("infos of " + works + " works did not arrive", subscribed.await(120, TimeUnit.SECONDS));
+            results.throughput("fanOutSubscribe" + works, works, System.nanoTime() - start);
+
+            CountDownLatch cancelled = expect(ids, "cancelled");
+            TestHarness.TestPromise cancel = new TestHarness.TestPromise();
+            start = System.nanoTime();
+            module.cancelAll("benchFanOut", cancel.promise);
+            cancel.await();
+            assertTrue("cancellations of " + works + " works did not arrive", cancelled.await(120, TimeUnit.SECONDS));
+            results.throughput("fanOutChange" + works, works, System.nanoTime() - start);
+
+            for (String id : ids) module.unsubscribe(id);
+
+        }
+
+    }
+
+    /**
+     * Replaces the fake target with one that waits for every work to reach some state on the info channel
+     * @return a latch released once all of them did
+     */
+    private static CountDownLatch expect(List<String> ids, String state) {
+        Set<String> pending = Collections.synchronizedSet(new HashSet<>(ids));
+        CountDownLatch latch = new CountDownLatch(1);
+        Emitter.setTarget((event, data) -> {
+            if(!event.equals(WorkInfoChannel.EVENT)) return;
+            for (String id : data.keySet()) {
+                Bundle info = data.getBundle(id);
+                if(info != null && state.equals(info.getString("state"))) pending.remove(id);
+            }
+            if(pending.isEmpty()) latch.countDown();
+        });
+        return latch;
+    }
+
+    /**
+     * @return a JSON string of exactly size characters
+     */
+    private static String payload(int size) {
+        StringBuilder payload = new StringBuilder(size).append("\"");
+        while (payload.length() < size - 1) payload.append('x');
+        return payload.append("\"").toString();
+    }
+
+}
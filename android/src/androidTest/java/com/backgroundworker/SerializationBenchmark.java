@@ -0,0 +1,189 @@
+package com.backgroundworker;
+
+import android.util.Base64;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Binary payloads through each payload type, from the bytes JS holds before enqueueing to the bytes the workflow
+ * holds, and back as the work's value. json wraps the bytes in a base64 JSON string, which JS stringifies and parses
+ * on both ends, raw hands the base64 string over untouched and file only hands over the path of a file the app
+ * already wrote. JS is replaced by a fake Emitter.Target, which decodes the payload and answers from its own thread,
+ * and org.json stands for JSON.stringify and JSON.parse.
+ * Results are written to benchmarks/serialization.json, see BenchmarkResults.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SerializationBenchmark {
+
+    private static final int WARMUP = 2;
+    private static final int[] SIZES = { 1024, 100 * 1024, 5 * 1024 * 1024 };
+    private static final int[] SAMPLES = { 50, 20, 5 };
+
+    private static final BenchmarkResults results = new BenchmarkResults("serialization");
+
+    private BackgroundWorkerModule module;
+    // stands for the JS thread, it decodes the payloads the fake target receives and answers their works
+    private final ExecutorService js = Executors.newSingleThreadExecutor();
+
+    @Before
+    public void setUp() {
+        module = TestHarness.createModule();
+    }
+
+    @After
+    public void tearDown() {
+        Emitter.setTarget(null);
+        js.shutdown();
+        module.onCatalystInstanceDestroy();
+    }
+
+    @AfterClass
+    public static void writeResults() throws IOException, JSONException {
+        results.write(TestHarness.getContext());
+    }
+
+    @Test
+    public void json() throws Exception {
+        measure("json");
+    }
+
+    @Test
+    public void raw() throws Exception {
+        measure("raw");
+    }
+
+    @Test
+    public void file() throws Exception {
+        measure("file");
+    }
+
+    /**
+     * Times each size through a worker of the payload type, dispatch goes from encoding the payload to the
+     * workflow holding its bytes, roundTrip goes on until the work's value was stored
+     * @param payloadType json, raw or file
+     */
+    private void measure(String payloadType) throws Exception {
+
+        String worker = "benchSerialization" + payloadType;
+        TestHarness.registerWorker(module, worker, null, "payloadType", payloadType);
+
+        ConcurrentHashMap<String, Long> decodedAt = new ConcurrentHashMap<>();
+        ConcurrentHashMap<String, CountDownLatch> stored = new ConcurrentHashMap<>();
+        ConcurrentHashMap<String, byte[]> received = new ConcurrentHashMap<>();
+        Emitter.setTarget((event, data) -> {
+            if(!event.equals(worker)) return;
+            String id = data.getString("id");
+            String payload = data.getString("payload");
+            int attempt = data.getInt("attempt");
+            js.execute(() -> {
+                try {
+                    byte[] bytes = decode(payloadType, payload);
+                    decodedAt.put(id, System.nanoTime());
+                    received.put(id, bytes);
+                    // the workflow hands the same bytes back as its value
+                    module.result(id, payloadType.equals("file") ? payload : encode(payloadType, bytes), "success", attempt);
+                } catch (IOException | JSONException e) {
+                    module.result(id, null, "failure", attempt);
+                }
+                CountDownLatch latch = stored.putIfAbsent(id, new CountDownLatch(0));
+                if(latch != null) latch.countDown();
+            });
+        });
+
+        Random random = new Random(42);
+        for (int s = 0; s < SIZES.length; s++) {
+            byte[] bytes = new byte[SIZES[s]];
+            random.nextBytes(bytes);
+            // file payloads are files the app already has, writing them is not part of the transport
+            File file = payloadType.equals("file") ? write(bytes) : null;
+            long[] dispatch = new long[SAMPLES[s]];
+            long[] roundTrip = new long[SAMPLES[s]];
+            for (int i = -WARMUP; i < SAMPLES[s]; i++) {
+                long start = System.nanoTime();
+                String payload = file!=null ? file.getPath() : encode(payloadType, bytes);
+                TestHarness.TestPromise enqueued = new TestHarness.TestPromise();
+                module.enqueue(worker, payload, null, enqueued.promise);
+                String id = (String) enqueued.await();
+                assertNotNull(id);
+                CountDownLatch latch = new CountDownLatch(1);
+                CountDownLatch previous = stored.putIfAbsent(id, latch);
+                if(previous != null) latch = previous;
+                assertTrue("work " + id + " did not complete", latch.await(60, TimeUnit.SECONDS));
+                long end = System.nanoTime();
+                assertArrayEquals(bytes, received.remove(id));
+                if(i < 0) continue;
+                dispatch[i] = decodedAt.get(id) - start;
+                roundTrip[i] = end - start;
+            }
+            if(file!=null && !file.delete()) file.deleteOnExit();
+            results.latencies(payloadType + "Dispatch" + SIZES[s], dispatch);
+            results.latencies(payloadType + "RoundTrip" + SIZES[s], roundTrip);
+        }
+
+    }
+
+    /**
+     * @return the payload JS sends for the bytes, a JSON string for json and the bare base64 for raw
+     */
+    private static String encode(String payloadType, byte[] bytes) {
+        String base64 = Base64.encodeToString(bytes, Base64.NO_WRAP);
+        return payloadType.equals("json") ? JSONObject.quote(base64) : base64;
+    }
+
+    /**
+     * @return the bytes the workflow gets out of the payload, the file's content for file
+     */
+    private static byte[] decode(String payloadType, String payload) throws IOException, JSONException {
+        if(payloadType.equals("file")) return read(new File(payload));
+        String base64 = payloadType.equals("json") ? (String) new JSONTokener(payload).nextValue() : payload;
+        return Base64.decode(base64, Base64.NO_WRAP);
+    }
+
+    private static File write(byte[] bytes) throws IOException {
+        File file = File.createTempFile("payload", ".bin", TestHarness.getContext().getCacheDir());
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(bytes);
+        }
+        return file;
+    }
+
+    private static byte[] read(File file) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        try (InputStream in = new FileInputStream(file)) {
+            int read = 0;
+            while (read < bytes.length) {
+                int count = in.read(bytes, read, bytes.length - read);
+                if(count < 0) throw new IOException("file is shorter than expected " + file);
+                read += count;
+            }
+        }
+        return bytes;
+    }
+
+}
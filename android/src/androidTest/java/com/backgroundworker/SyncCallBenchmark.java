@@ -0,0 +1,184 @@
+package com.backgroundworker;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.json.JSONException;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Per call latency of the synchronous methods against their asynchronous versions, as seen from the JS thread.
+ * The test's thread stands for the JS thread and a single thread stands for the native modules thread, which
+ * runs the asynchronous calls in order and settles their promises. The bridge's serialization is left out on
+ * both sides, so the gap measured is the queueing and the thread hops, the rest comes on top on a device.
+ * Results are written to benchmarks/syncCalls.json, see BenchmarkResults.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SyncCallBenchmark {
+
+    private static final int WARMUP = 100;
+    private static final int CALLS = 1000;
+
+    private static final BenchmarkResults results = new BenchmarkResults("syncCalls");
+
+    private BackgroundWorkerModule module;
+    // stands for the native modules thread
+    private final ExecutorService nativeModules = Executors.newSingleThreadExecutor();
+
+    @Before
+    public void setUp() {
+        module = TestHarness.createModule();
+    }
+
+    @After
+    public void tearDown() {
+        Emitter.setTarget(null);
+        nativeModules.shutdown();
+        module.onCatalystInstanceDestroy();
+    }
+
+    @AfterClass
+    public static void writeResults() throws IOException, JSONException {
+        results.write(TestHarness.getContext());
+    }
+
+    @Test
+    public void enqueue() throws InterruptedException {
+
+        TestHarness.registerWaitingWorker(module, "benchSyncEnqueue");
+
+        long[] async = new long[CALLS];
+        long[] sync = new long[CALLS];
+        for (int i = -WARMUP; i < CALLS; i++) {
+            long start = System.nanoTime();
+            TestHarness.TestPromise enqueued = new TestHarness.TestPromise();
+            nativeModules.execute(() -> module.enqueue("benchSyncEnqueue", "{}", null, enqueued.promise));
+            assertNotNull(enqueued.await());
+            if(i >= 0) async[i] = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            assertNotNull(module.enqueueSync("benchSyncEnqueue", "{}", null));
+            if(i >= 0) sync[i] = System.nanoTime() - start;
+        }
+        results.latencies("enqueueAsync", async);
+        results.latencies("enqueueSync", sync);
+
+        TestHarness.TestPromise cancelled = new TestHarness.TestPromise();
+        module.cancelAll("benchSyncEnqueue", cancelled.promise);
+        cancelled.await();
+
+    }
+
+    /**
+     * Asks for the info of a work whose result was just stored, so the synchronous call is answered from memory
+     */
+    @Test
+    public void info() throws InterruptedException {
+
+        TestHarness.registerWorker(module, "benchSyncInfo", null);
+        ConcurrentHashMap<String, CountDownLatch> emitted = new ConcurrentHashMap<>();
+        Emitter.setTarget((event, data) -> {
+            if(!event.equals("benchSyncInfo")) return;
+            String id = data.getString("id");
+            module.result(id, "\"done\"", "success", data.getInt("attempt"));
+            CountDownLatch latch = emitted.putIfAbsent(id, new CountDownLatch(0));
+            if(latch != null) latch.countDown();
+        });
+
+        long[] async = new long[CALLS];
+        long[] sync = new long[CALLS];
+        for (int i = -WARMUP; i < CALLS; i++) {
+            String id = awaitFinished(awaitEmitted(emitted, module.enqueueSync("benchSyncInfo", "{}", null)));
+            long start = System.nanoTime();
+            TestHarness.TestPromise info = new TestHarness.TestPromise();
+            nativeModules.execute(() -> module.info(id, info.promise));
+            assertNotNull(info.await());
+            if(i >= 0) async[i] = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            assertNotNull(module.infoSync(id));
+            if(i >= 0) sync[i] = System.nanoTime() - start;
+        }
+        results.latencies("infoAsync", async);
+        results.latencies("infoSync", sync);
+
+    }
+
+    /**
+     * Times sending a result, until the call returns to the JS thread
+     */
+    @Test
+    public void result() throws InterruptedException {
+
+        TestHarness.registerWorker(module, "benchSyncResult", null);
+        ConcurrentHashMap<String, CountDownLatch> emitted = new ConcurrentHashMap<>();
+        Emitter.setTarget((event, data) -> {
+            if(!event.equals("benchSyncResult")) return;
+            CountDownLatch latch = emitted.putIfAbsent(data.getString("id"), new CountDownLatch(0));
+            if(latch != null) latch.countDown();
+        });
+
+        long[] async = new long[CALLS];
+        long[] sync = new long[CALLS];
+        for (int i = -WARMUP; i < CALLS; i++) {
+            String asyncId = awaitEmitted(emitted, module.enqueueSync("benchSyncResult", "{}", null));
+            String syncId = awaitEmitted(emitted, module.enqueueSync("benchSyncResult", "{}", null));
+
+            // both works are on their first attempt
+            long start = System.nanoTime();
+            CountDownLatch called = new CountDownLatch(1);
+            nativeModules.execute(() -> {
+                module.result(asyncId, null, "success", 0);
+                called.countDown();
+            });
+            assertTrue(called.await(30, TimeUnit.SECONDS));
+            if(i >= 0) async[i] = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            assertTrue(module.resultSync(syncId, null, "success", 0));
+            if(i >= 0) sync[i] = System.nanoTime() - start;
+        }
+        results.latencies("resultAsync", async);
+        results.latencies("resultSync", sync);
+
+    }
+
+    /**
+     * The result is stored when the work wraps up, after it reached JS
+     * @return the id, once its work's result was stored
+     */
+    private static String awaitFinished(String id) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(30);
+        while (ResultStore.get(TestHarness.getContext()).getInfo(id) == null) {
+            assertTrue("work " + id + " did not finish", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+        return id;
+    }
+
+    /**
+     * @return the id, once its work reached JS
+     */
+    private static String awaitEmitted(ConcurrentHashMap<String, CountDownLatch> emitted, String id) throws InterruptedException {
+        assertNotNull(id);
+        CountDownLatch latch = new CountDownLatch(1);
+        CountDownLatch previous = emitted.putIfAbsent(id, latch);
+        if(previous != null) latch = previous;
+        assertTrue("work " + id + " never reached JS", latch.await(30, TimeUnit.SECONDS));
+        return id;
+    }
+
+}
@@ -0,0 +1,112 @@
+package com.backgroundworker;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+import androidx.work.Configuration;
+import androidx.work.testing.SynchronousExecutor;
+import androidx.work.testing.WorkManagerTestInitHelper;
+
+import com.facebook.react.bridge.JavaOnlyMap;
+import com.facebook.react.bridge.Promise;
+import com.facebook.react.bridge.PromiseImpl;
+import com.facebook.react.bridge.ReactApplicationContext;
+import com.facebook.soloader.SoLoader;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the module against WorkManager's test implementation, without a react instance.
+ * WorkManager's own work runs synchronously on the calling thread, and works only run once the test driver
+ * says their constraints are met, so works of constrained workers stay enqueued as long as a test needs them.
+ */
+class TestHarness {
+
+    private static final long TIMEOUT = 30;
+
+    /**
+     * A promise that can be awaited from the test's thread
+     */
+    static class TestPromise {
+
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private volatile boolean resolved;
+        @Nullable private volatile Object value;
+
+        final Promise promise = new PromiseImpl(args -> settle(true, args), args -> settle(false, args));
+
+        private void settle(boolean _resolved, Object[] args) {
+            resolved = _resolved;
+            value = args.length > 0 ? args[0] : null;
+            latch.countDown();
+        }
+
+        /**
+         * @return the resolved value, the test fails if the promise was rejected or is not settled in time
+         */
+        @Nullable
+        Object await() throws InterruptedException {
+            assertTrue("promise not settled", latch.await(TIMEOUT, TimeUnit.SECONDS));
+            assertTrue("promise rejected with " + value, resolved);
+            return value;
+        }
+
+    }
+
+    static Context getContext() {
+        return InstrumentationRegistry.getInstrumentation().getTargetContext();
+    }
+
+    /**
+     * @return a module on a fresh test WorkManager, initialized like react does, it must be destroyed with onCatalystInstanceDestroy
+     */
+    static BackgroundWorkerModule createModule() {
+        Context context = getContext();
+        SoLoader.init(context, false);
+        WorkManagerTestInitHelper.initializeTestWorkManager(context, new Configuration.Builder()
+                .setMinimumLoggingLevel(Log.WARN)
+                .setExecutor(new SynchronousExecutor())
+                .build());
+        BackgroundWorkerModule module = new BackgroundWorkerModule(new ReactApplicationContext(context));
+        module.initialize();
+        return module;
+    }
+
+    /**
+     * Registers a queue worker whose works wait for their constraints until the test driver says they are met
+     * @param options extra keys and values of the worker definition
+     */
+    static void registerWaitingWorker(BackgroundWorkerModule module, String name, Object... options) throws InterruptedException {
+        registerWorker(module, name, JavaOnlyMap.of("network", "connected", "battery", "charging"), options);
+    }
+
+    /**
+     * Registers a queue worker, the type can be overridden by the options
+     * @param options extra keys and values of the worker definition
+     */
+    static void registerWorker(BackgroundWorkerModule module, String name, @Nullable JavaOnlyMap constraints, Object... options) throws InterruptedException {
+        JavaOnlyMap worker = JavaOnlyMap.of("type", "queue", "name", name);
+        // numbers arrive as doubles, like they do from JS
+        for (int i = 0; i + 1 < options.length; i += 2) {
+            String key = (String) options[i];
+            Object value = options[i + 1];
+            if(value instanceof Number) worker.putDouble(key, ((Number) value).doubleValue());
+            else if(value instanceof Boolean) worker.putBoolean(key, (Boolean) value);
+            else worker.putString(key, String.valueOf(value));
+        }
+        TestPromise registered = new TestPromise();
+        module.registerWorker(worker, constraints, registered.promise);
+        registered.await();
+    }
+
+    static int threadCount() {
+        return Thread.getAllStackTraces().size();
+    }
+
+}
@@ -1,84 +1,462 @@
 package com.backgroundworker;
 
-import android.content.BroadcastReceiver;
+import android.app.ActivityManager;
 import android.content.Context;
-import android.content.Intent;
-import android.content.IntentFilter;
 import android.os.Bundle;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
-import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 import androidx.work.Data;
+import androidx.work.OneTimeWorkRequest;
+import androidx.work.Operation;
 import androidx.work.RxWorker;
+import androidx.work.WorkManager;
 import androidx.work.WorkerParameters;
 
-import com.facebook.react.bridge.Arguments;
-import com.facebook.react.modules.core.DeviceEventManagerModule;
+import com.google.common.util.concurrent.ListenableFuture;
 
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.Nullable;
 
 import io.reactivex.Single;
+import io.reactivex.disposables.Disposable;
 
 public class BackgroundWorker extends RxWorker {
 
+    static final String CANCEL_EVENT = "workCancelled";
+
+    private final WorkerRegistry registry;
+    private final PayloadStore payloads;
+    private final ResultStore results;
+    private final DedupIndex dedup;
+    private final Executor callbackExecutor;
     private Map<String, Object> worker;
     private String id;
 
     public BackgroundWorker(@NonNull Context appContext, @NonNull WorkerParameters workerParams) {
+        this(appContext, workerParams, WorkerDependencies.get(appContext));
+    }
+
+    /**
+     * Used by the library's WorkerFactory, which hands every worker the same dependencies
+     */
+    BackgroundWorker(@NonNull Context appContext, @NonNull WorkerParameters workerParams, WorkerDependencies dependencies) {
         super(appContext, workerParams);
-        worker = workerParams.getInputData().getKeyValueMap();
+        registry = dependencies.registry;
+        payloads = dependencies.payloads;
+        results = dependencies.results;
+        dedup = dependencies.dedup;
+        callbackExecutor = dependencies.callbackExecutor;
+        worker = getWorker(registry, workerParams.getInputData());
         id = workerParams.getId().toString();
     }
 
+    /**
+     * Works carry only the worker's name and version, the rest of the worker information comes from the
+     * WorkerRegistry, works enqueued before the registry existed carry everything on their input data
+     * @param registry the registry the worker information is read from
+     * @param inputData the work's input data
+     * @return the worker information merged with the work's own data
+     */
+    static Map<String, Object> getWorker(WorkerRegistry registry, Data inputData) {
+        Map<String, Object> input = inputData.getKeyValueMap();
+        Object name = input.get("name");
+        Object version = input.get("version");
+        if(!(name instanceof String)) return input;
+        WorkerRegistry.Definition definition = version instanceof Integer
+                ? registry.get((String) name, (Integer) version)
+                : registry.get((String) name);
+        if(definition==null) return input;
+        Map<String, Object> worker = new HashMap<>(definition.worker);
+        worker.putAll(input);
+        return worker;
+    }
+
     /**
      * We chose the RxWorker because we can listen to JS during the task,
-     * If the module context is destroyed, the app was closed hence we can't perform any task,
-     * so just return retry to work manager
+     * If the module context is destroyed, the app was closed, so the task is handed straight to the
+     * headless service, which starts react and waits for JS to finish the work,
+     * works of a busy priority lane wait for a slot before reaching JS, see Lanes
      * @return Single that listens to JS finishing the work
      */
     @NonNull
     @Override
     public Single<Result> createWork() {
 
-        if(BackgroundWorkerModule.context==null)
-            return Single.just(Result.retry());
-
         String name = (String) worker.get("name");
         String payload = (String) worker.get("payload");
+        String payloadRef = (String) worker.get("payloadRef");
 
         if(name==null)
-            return Single.just(Result.failure());
+            return fail(null);
+
+        String lane = Lanes.of(worker.get("priority"));
+
+        // the blocking behaviour is decided here, so a blocked work never wakes JS up only to be retried
+        if("blocking".equals(worker.get("foregroundBehaviour")) && !Lanes.HIGH.equals(lane) && isAppInForeground()) {
+            BlockedAttempts.increment(getApplicationContext(), id);
+            Metrics.resolved(name, "retry", true, 1);
+            return Single.just(Result.retry());
+        }
+
+        if(payloadRef!=null) {
+            try {
+                payload = payloads.read(payloadRef);
+            } catch (IOException e) {
+                Log.e("BackgroundWorker", "could not read payload " + payloadRef, e);
+                Metrics.resolved(name, "failure", false, 1);
+                return fail(name);
+            }
+            // no attempt can bring back a payload whose segment was deleted
+            if(payload==null) {
+                Log.e("BackgroundWorker", "payload is gone " + payloadRef);
+                Metrics.resolved(name, "failure", false, 1);
+                return fail(name);
+            }
+        }
+
+        Object payloadResults = worker.get("payloadResults");
+        if(payloadResults instanceof String) {
+            try {
+                payload = ChainInputMerger.resolve(results, (String) payloadResults, Integer.valueOf(1).equals(worker.get("parents")));
+            } catch (IOException | JSONException e) {
+                Log.e("BackgroundWorker", "could not read the results of the parents of " + id, e);
+                Metrics.resolved(name, "failure", false, 1);
+                return fail(name);
+            }
+        }
+
+        String payloadType = worker.get("payloadType") instanceof String ? (String) worker.get("payloadType") : "json";
+        if(payloadType.equals("file") && payload!=null && !new File(payload).isFile()) {
+            Log.e("BackgroundWorker", "payload file is gone " + payload);
+            Metrics.resolved(name, "failure", false, 1);
+            return fail(name);
+        }
+
+        boolean deduplicated = Boolean.TRUE.equals(worker.get("deduplicated"));
+        if(deduplicated) {
+            try {
+                payload = dedup.claim(id);
+            } catch (IOException e) {
+                Log.e("BackgroundWorker", "could not read deduplicated payload of " + id, e);
+                Metrics.resolved(name, "failure", false, 1);
+                return fail(name);
+            }
+        }
+
+        BatchStore store = null;
+        int size = 1;
+        if(Boolean.TRUE.equals(worker.get("batch"))) {
+            Object maxBatchSize = worker.get("maxBatchSize");
+            store = BatchStore.get(getApplicationContext(), name);
+            JSONArray batch = store.drain(id, maxBatchSize instanceof Number ? ((Number) maxBatchSize).intValue() : 1);
+            if(batch.length()==0)
+                return Single.just(Result.success());
+            payload = batch.toString();
+            size = batch.length();
+        }
+        final BatchStore batchStore = store;
+        final int count = size;
+
+        Object enqueuedAt = worker.get("enqueuedAt");
+        Metrics.started(name, enqueuedAt instanceof Long ? (Long) enqueuedAt : 0);
+
+        // JS sends it back along with the result, so a late result of an earlier attempt can't resolve this one
+        final int attempt = getRunAttemptCount();
 
         Bundle extras = new Bundle();
         extras.putString("id", id);
+        extras.putInt("attempt", attempt);
+        extras.putString("priority", lane);
         if(payload!=null) extras.putString("payload",payload);
 
-        BackgroundWorkerModule.context.getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
-                .emit(name, Arguments.fromBundle(extras));
+        Object _timeout = worker.get("timeout");
+        long timeout = TimeUnit.MINUTES.toMillis(_timeout instanceof Number ? ((Number) _timeout).longValue() : 10);
 
         return Single.create(emitter -> {
-            BroadcastReceiver receiver = new BroadcastReceiver() {
-                @Override
-                public void onReceive(Context context, Intent intent) {
-                    String value = intent.getStringExtra("value");
-                    String result = intent.getStringExtra("result");
-                    Data outputData = new Data.Builder()
-                            .putString("value", value)
-                            .build();
-                    switch (result) {
-                        case "success":
-                            emitter.onSuccess(Result.success(outputData));
-                            break;
-                        case "retry":
-                            emitter.onSuccess(Result.retry());
-                            break;
-                        default:
-                            emitter.onSuccess(Result.failure(outputData));
-                    }
-                }
+            final long[] emittedAt = { System.currentTimeMillis() };
+            final Disposable[] timer = { null };
+            final AtomicBoolean started = new AtomicBoolean(false);
+            Runnable start = () -> {
+                // a slot of the lane can free up while the work is being disposed, a timer armed now would outlive it
+                if(emitter.isDisposed()) return;
+                started.set(true);
+                emittedAt[0] = System.currentTimeMillis();
+                // a task that never answers is retried once its timeout is over, whichever way it was started
+                timer[0] = Single.timer(timeout, TimeUnit.MILLISECONDS).subscribe(ignored -> {
+                    emitCancel("timeout");
+                    CompletionRegistry.complete(id, attempt, "\"timeout\"", "retry");
+                });
+                Metrics.emitted(name);
+                if(Emitter.emit(name, extras)) return;
+                Bundle configuration = toBundle(worker);
+                configuration.putAll(extras);
+                BackgroundWorkerService.start(getApplicationContext(), configuration);
             };
-            LocalBroadcastManager.getInstance(BackgroundWorkerModule.context).registerReceiver(receiver,new IntentFilter(id+"result"));
+            CompletionRegistry.register(id, attempt, emitter, (value, result) -> {
+                Metrics.ran(name, emittedAt[0]);
+                if(batchStore!=null) return completeBatch(name, batchStore, value, result, count);
+                // the blocking foreground behaviour sends back this value along with its retry
+                boolean blocked = result.equals("retry") && "\"blocked\"".equals(value);
+                if(blocked) {
+                    Metrics.resolved(name, result, true, 1);
+                    BlockedAttempts.increment(getApplicationContext(), id);
+                    return Result.retry();
+                }
+                // null values are left out, the ArrayCreatingInputMerger used by WorkContinuation.combine can't merge them
+                Data.Builder output = new Data.Builder();
+                // long values would overflow the 10KB output Data, readers get them from the ResultStore
+                if(value!=null && value.length()<=ResultStore.INLINE_LIMIT) output.putString("value", value);
+                // raw and file values are not JSON, so readers must not parse them
+                if(!payloadType.equals("json")) output.putString("valueType", payloadType);
+                // chained steps also output their value under their own key, so the steps after them can tell their parents apart,
+                // and their id, so long values can be read from the ResultStore instead
+                Object step = worker.get("step");
+                if(step instanceof String) {
+                    if(value!=null && value.length()<=ResultStore.INLINE_LIMIT) output.putString(ChainInputMerger.VALUE_PREFIX + step, value);
+                    output.putString(ChainInputMerger.RESULT_PREFIX + step, id);
+                }
+                Data outputData = output.build();
+                if(result.equals("retry") && !isOutOfAttempts()) {
+                    Metrics.resolved(name, result, false, 1);
+                    return Result.retry();
+                }
+                // a retry past the maxAttempts budget fails the work, and is counted as such
+                Metrics.resolved(name, result.equals("success") ? "success" : "failure", false, 1);
+                BlockedAttempts.clear(getApplicationContext(), id);
+                if(payloadRef!=null) payloads.release(payloadRef);
+                if(deduplicated) dedup.forget(id);
+                Object scheduledAt = worker.get("scheduledAt");
+                if(scheduledAt instanceof Long) scheduleNextTick(name, (Long) scheduledAt);
+                // a periodic work goes back to enqueued after each run, only its ticks have a result of their own
+                if(!"periodic".equals(worker.get("type")) || scheduledAt instanceof Long)
+                    results.put(id, name, result.equals("success") ? "succeeded" : "failed",
+                            value, payloadType.equals("json") ? null : payloadType, getRunAttemptCount() + 1);
+                return result.equals("success") ? Result.success(outputData) : Result.failure(outputData);
+            }, () -> {
+                if(timer[0]!=null) timer[0].dispose();
+                Progress.unregister(id);
+                Lanes.done(lane, start);
+                // stopped while it waited for a slot of its lane, the attempt never reached JS so it doesn't spend the budget
+                if(!started.get()) BlockedAttempts.increment(getApplicationContext(), id);
+            });
+            Progress.register(id, data -> {
+                setProgressAsync(new Data.Builder().putString("progress", data).build());
+                BackgroundWorkerService.progress(id, data);
+            });
+            // works over their lane's limit wait for a slot before reaching JS
+            Lanes.acquire(lane, start);
         });
     }
+
+    /**
+     * Fails a work before it reaches JS, a tick of a short interval worker still enqueues the next one on its way out,
+     * so a tick that can't run doesn't end its schedule
+     * @param name the worker's name, null if the work doesn't carry it
+     * @return the failed work
+     */
+    private Single<Result> fail(@Nullable String name) {
+        Object scheduledAt = worker.get("scheduledAt");
+        if(scheduledAt instanceof Long) {
+            // ticks are also tagged with their worker's name
+            if(name==null) for (String tag : getTags())
+                if(!tag.equals(BackgroundWorkerModule.WORK_TAG) && !tag.equals(getClass().getName())) name = tag;
+            if(name!=null) scheduleNextTick(name, (Long) scheduledAt);
+        }
+        return Single.just(Result.failure());
+    }
+
+    /**
+     * Enqueues the next tick of a short interval worker, planned from this tick's planned time,
+     * unless the worker was scheduled again or cancelled meanwhile.
+     * The schedule only moves on to the next tick once WorkManager persisted it, and the tick is cancelled
+     * if the worker was scheduled again or cancelled while it was being enqueued
+     * @param name the worker's name
+     * @param scheduledAt when this tick was planned to run
+     */
+    private void scheduleNextTick(String name, long scheduledAt) {
+        Object version = worker.get("version");
+        WorkerRegistry.Definition definition = version instanceof Integer
+                ? registry.get(name, (Integer) version)
+                : registry.get(name);
+        if(definition==null) return;
+        Object _previous = worker.get("previousTick");
+        String previous = _previous instanceof String ? (String) _previous : null;
+        Context context = getApplicationContext();
+        if(!Schedule.isCurrent(context, name, id, previous)) return;
+        long now = System.currentTimeMillis();
+        long interval = TimeUnit.MINUTES.toMillis(Math.max(1, definition.getInt("repeatInterval", Schedule.MIN_PERIODIC_INTERVAL)));
+        long nextAt = Schedule.next(scheduledAt, interval, now);
+        OneTimeWorkRequest next = Schedule.tick(definition, nextAt, now, id);
+        WorkManager workManager = WorkManagerConfiguration.getWorkManager(context);
+        ListenableFuture<Operation.State.SUCCESS> enqueued = workManager.enqueue(next).getResult();
+        BackgroundWorkerService.prewarm(context, definition, nextAt - now);
+        enqueued.addListener(() -> {
+            try {
+                enqueued.get();
+            } catch (ExecutionException | InterruptedException e) {
+                Log.e("BackgroundWorker", "could not enqueue the next tick of " + name, e);
+                return;
+            }
+            if(!Schedule.advance(context, name, id, previous, next.getId().toString())) workManager.cancelWorkById(next.getId());
+        }, callbackExecutor);
+    }
+
+    /**
+     * The work was cancelled or stopped by the system, disposing the Single frees the work's slot
+     * and JS is told so the task can abort whatever it is doing
+     */
+    @Override
+    public void onStopped() {
+        super.onStopped();
+        emitCancel("stopped");
+    }
+
+    /**
+     * @param reason why the task should stop, timeout or stopped
+     */
+    private void emitCancel(String reason) {
+        Bundle cancelled = new Bundle();
+        cancelled.putString("id", id);
+        cancelled.putString("reason", reason);
+        Emitter.emit(CANCEL_EVENT, cancelled);
+    }
+
+    /**
+     * @return true if the app has a visible activity, foreground services don't count
+     */
+    private static boolean isAppInForeground() {
+        ActivityManager.RunningAppProcessInfo info = new ActivityManager.RunningAppProcessInfo();
+        ActivityManager.getMyMemoryState(info);
+        return info.importance == ActivityManager.RunningAppProcessInfo.IMPORTANCE_FOREGROUND;
+    }
+
+    /**
+     * The worker's maxAttempts budget counts every attempt that reached JS, attempts blocked because
+     * the app was in foreground, or stopped while waiting for a slot of their lane, don't count
+     * @return true if this attempt was the last one the work could make
+     */
+    private boolean isOutOfAttempts() {
+        Object maxAttempts = worker.get("maxAttempts");
+        if(!(maxAttempts instanceof Number)) return false;
+        int attempts = getRunAttemptCount() + 1 - BlockedAttempts.count(getApplicationContext(), id);
+        return attempts >= ((Number) maxAttempts).intValue();
+    }
+
+    private static Bundle toBundle(Map<String, Object> map) {
+        Bundle bundle = new Bundle();
+        for (Map.Entry<String, Object> entry : map.entrySet()) {
+            Object value = entry.getValue();
+            if(value instanceof String) bundle.putString(entry.getKey(), (String) value);
+            else if(value instanceof Integer) bundle.putInt(entry.getKey(), (Integer) value);
+            else if(value instanceof Number) bundle.putDouble(entry.getKey(), ((Number) value).doubleValue());
+            else if(value instanceof Boolean) bundle.putBoolean(entry.getKey(), (Boolean) value);
+        }
+        return bundle;
+    }
+
+    /**
+     * A batched work resolves each of its payloads from the array of results sent by JS,
+     * if the whole batch failed every payload gets the same value, and if it should be retried
+     * the payloads go back to the store and the work itself is retried.
+     * maxAttempts applies to each payload, a payload retried past it fails, whether it was retried alone or with its batch
+     * @param name the worker's name
+     * @param store the store the payloads were drained from
+     * @param value JSON array of { id, result, value } or the batch value
+     * @param result the batch resolution, could be success, failure or retry
+     * @param count how many payloads were drained for this batch
+     * @return the result of the work that ran the batch
+     */
+    private Result completeBatch(String name, BatchStore store, String value, String result, int count) {
+
+        Object _maxAttempts = worker.get("maxAttempts");
+        int maxAttempts = _maxAttempts instanceof Number ? ((Number) _maxAttempts).intValue() : 0;
+
+        if("retry".equals(result)) {
+            boolean blocked = "\"blocked\"".equals(value);
+            List<String> failed = store.requeue(id, value, maxAttempts, blocked);
+            Metrics.resolved(name, result, blocked, count - failed.size());
+            if(!failed.isEmpty()) {
+                Metrics.resolved(name, "failure", false, failed.size());
+                store.commit();
+                publishBatch(name, store, failed);
+            }
+            return Result.retry();
+        }
+
+        Set<String> ids = new HashSet<>();
+        try {
+            JSONArray results = new JSONArray(value);
+            for (int i = 0; i < results.length(); i++) {
+                JSONObject item = results.getJSONObject(i);
+                String itemId = item.getString("id");
+                String itemResult = store.complete(id, itemId, item.isNull("value") ? null : item.getString("value"),
+                        item.optString("result", "failure"), maxAttempts);
+                if(itemResult!=null && ids.add(itemId)) Metrics.resolved(name, itemResult, false, 1);
+            }
+        } catch (JSONException e) {
+            Log.e("BackgroundWorker", "invalid batch result", e);
+        }
+        // payloads without a result of their own take the batch resolution
+        String remainingResult = "success".equals(result) ? "success" : "failure";
+        if(count>ids.size()) Metrics.resolved(name, remainingResult, false, count - ids.size());
+        ids.addAll(store.completeRemaining(id, value, remainingResult));
+        store.commit();
+
+        if(store.pendingCount()>0 && store.claimFlush()) {
+            // the next flush takes the worker's constraints and backoff, like the one enqueue schedules
+            WorkerRegistry.Definition definition = registry.get(name);
+            if(definition==null && worker.get("version") instanceof Integer) definition = registry.get(name, (Integer) worker.get("version"));
+            OneTimeWorkRequest next;
+            if(definition!=null) next = BackgroundWorkerModule.flushRequest(definition, 0);
+            else {
+                OneTimeWorkRequest.Builder builder = new OneTimeWorkRequest.Builder(BackgroundWorker.class)
+                        .setInputData(getInputData());
+                for (String tag : getTags()) builder.addTag(tag);
+                next = builder.build();
+            }
+            WorkManagerConfiguration.getWorkManager(getApplicationContext()).enqueue(next);
+            if(definition!=null) BackgroundWorkerService.prewarm(getApplicationContext(), definition, 0);
+        }
+
+        publishBatch(name, store, ids);
+
+        return Result.success();
+
+    }
+
+    /**
+     * Stores the results of the payloads a batch resolved and sends their infos to their listeners
+     * @param name the worker's name
+     * @param store the store the payloads were drained from
+     * @param ids the payloads' logical ids
+     */
+    private void publishBatch(String name, BatchStore store, Collection<String> ids) {
+        WorkInfoChannel channel = BackgroundWorkerModule.channel;
+        for (String itemId : ids) {
+            Bundle info = store.getInfo(itemId);
+            if(info==null) continue;
+            String state = info.getString("state");
+            if("succeeded".equals(state) || "failed".equals(state))
+                results.put(itemId, name, state, info.getString("value"), null, info.getInt("attemptCount"));
+            if(channel!=null) channel.offer(itemId, info);
+            if(BatchStore.isWatched(itemId)) Emitter.emit(itemId+"info", info);
+        }
+    }
 }
\ No newline at end of file
@@ -1,20 +1,23 @@
 
 package com.backgroundworker;
 
-import android.content.Intent;
+import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
+import android.util.Log;
 
 import androidx.lifecycle.LiveData;
 import androidx.lifecycle.Observer;
-import androidx.localbroadcastmanager.content.LocalBroadcastManager;
+import androidx.work.BackoffPolicy;
 import androidx.work.Constraints;
 import androidx.work.Data;
 import androidx.work.ExistingPeriodicWorkPolicy;
+import androidx.work.ExistingWorkPolicy;
 import androidx.work.OneTimeWorkRequest;
 import androidx.work.Operation;
 import androidx.work.PeriodicWorkRequest;
+import androidx.work.WorkContinuation;
 import androidx.work.WorkInfo;
 import androidx.work.WorkManager;
 import androidx.work.WorkRequest;
@@ -24,31 +27,143 @@ import com.facebook.react.bridge.Promise;
 import com.facebook.react.bridge.ReactApplicationContext;
 import com.facebook.react.bridge.ReactContextBaseJavaModule;
 import com.facebook.react.bridge.ReactMethod;
+import com.facebook.react.bridge.ReadableArray;
 import com.facebook.react.bridge.ReadableMap;
-import com.facebook.react.modules.core.DeviceEventManagerModule;
+import com.facebook.react.bridge.ReadableType;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
 import com.google.common.util.concurrent.ListenableFuture;
 
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 import static androidx.work.Operation.State;
 
+/**
+ * Threading model: react methods run on the native modules thread, future callbacks on the callbackExecutor,
+ * works on WorkManager's executor and every LiveData observer on the main thread.
+ * State shared between them is either immutable, concurrent, like the listeners and the WorkerRegistry's
+ * definitions, or confined to a single thread, like the WorkInfoChannel and Progress, which only touch it
+ * from the main thread. The static context and channel are only swapped when a react instance is created or
+ * destroyed, they are volatile so readers take a snapshot of them instead of locking.
+ * The stores do take their monitors, the BatchStore and the PayloadStore only hold them while changing their
+ * state in memory and sync their files after releasing them, so concurrent enqueues wait for each other's changes
+ * but never for each other's fsync.
+ */
 public class BackgroundWorkerModule extends ReactContextBaseJavaModule {
 
-    static ReactApplicationContext context;
+    static final String WORK_TAG = "BackgroundWorker";
+
+    /**
+     * An observer of addListener along with the LiveData it observes, WorkManager hands out a new LiveData
+     * on every call, so the observer can only be removed from this one
+     */
+    private static class Listener {
+        final LiveData<WorkInfo> data;
+        final Observer<WorkInfo> observer;
+        Listener(LiveData<WorkInfo> data, Observer<WorkInfo> observer) {
+            this.data = data;
+            this.observer = observer;
+        }
+    }
+
+    static volatile ReactApplicationContext context;
+    static volatile WorkInfoChannel channel;
     private final Handler handler = new Handler(Looper.getMainLooper());
+    // every future callback of the module runs here, so no callback ever spawns a thread of its own
+    private final ExecutorService callbackExecutor = Executors.newSingleThreadExecutor();
 
-    private HashMap<String, ReadableMap> queuedWorkers = new HashMap<>();
-    private HashMap<String, Constraints> queuedConstraints = new HashMap<>();
-    private HashMap<String, Observer<WorkInfo>> listeners = new HashMap<>();
+    private final WorkerRegistry registry;
+    private final ConcurrentHashMap<String, Listener> listeners = new ConcurrentHashMap<>();
+    private long metricsInterval = 0;
+    private final Runnable emitMetrics = new Runnable() {
+        @Override
+        public void run() {
+            execute(() -> {
+                try {
+                    Emitter.emit("backgroundWorkerMetrics", collectMetrics());
+                } catch (Throwable e) { Log.e("BackgroundWorkerModule", "could not collect metrics", e); }
+            });
+            if(metricsInterval>0) handler.postDelayed(this, metricsInterval);
+        }
+    };
 
     BackgroundWorkerModule(ReactApplicationContext reactContext) {
         super(reactContext);
-        context = reactContext;
+        synchronized (BackgroundWorkerModule.class) {
+            context = reactContext;
+            channel = new WorkInfoChannel(reactContext);
+        }
+        registry = WorkerRegistry.get(reactContext);
+    }
+
+    /**
+     * Loads everything the synchronous methods touch before JS can call them, they run on the JS thread,
+     * so the first enqueueSync must find the worker definitions in memory and WorkManager initialized.
+     * The first use of the result store reads its whole log, better here than on the way to some listener
+     */
+    @Override
+    public void initialize() {
+        super.initialize();
+        ReactApplicationContext reactContext = getReactApplicationContext();
+        execute(() -> {
+            try {
+                registry.load();
+                DedupIndex.get(reactContext);
+                WorkManagerConfiguration.getWorkManager(reactContext);
+                ResultStore.get(reactContext);
+                sweepPayloads();
+            } catch (Throwable e) { Log.e("BackgroundWorkerModule", "could not warm up", e); }
+        });
+    }
+
+    /**
+     * Releases the stored payloads of works that finished without running, like cancelled or pruned works,
+     * both the ones on the PayloadStore and the ones on the DedupIndex, and their blocked attempts
+     */
+    private void sweepPayloads() {
+        ListenableFuture<List<WorkInfo>> futureInfos = WorkManagerConfiguration.getWorkManager(context).getWorkInfosByTag(WORK_TAG);
+        futureInfos.addListener(() -> {
+            try {
+
+                Set<String> live = new HashSet<>();
+                Set<String> liveIds = new HashSet<>();
+                for (WorkInfo info : futureInfos.get()) {
+                    if(info.getState().isFinished()) continue;
+                    liveIds.add(info.getId().toString());
+                    for (String tag : info.getTags())
+                        if(tag.startsWith(PayloadStore.HANDLE_TAG)) live.add(tag.substring(PayloadStore.HANDLE_TAG.length()));
+                }
+                // the dedup index keeps its payloads on the store too, they are only released once their works are gone
+                DedupIndex dedup = DedupIndex.get(context);
+                dedup.sweep(liveIds);
+                live.addAll(dedup.handles());
+                PayloadStore.get(context).sweep(live);
+                BlockedAttempts.sweep(context, liveIds);
+
+            } catch (Throwable e) { Log.e("BackgroundWorkerModule", "could not sweep payloads", e); }
+        }, callbackExecutor);
     }
 
     @Nonnull
@@ -59,13 +174,23 @@ public class BackgroundWorkerModule extends ReactContextBaseJavaModule {
 
     @Override
     public void onCatalystInstanceDestroy() {
-        for (String id : listeners.keySet()) removeListener(id);
+        for (String id : new ArrayList<>(listeners.keySet())) removeListener(id);
+        handler.removeCallbacks(emitMetrics);
+        callbackExecutor.shutdown();
+        // a reload may have created the next instance already, it keeps its own context and channel
+        synchronized (BackgroundWorkerModule.class) {
+            if(context==getReactApplicationContext()) {
+                channel.destroy();
+                channel = null;
+                context = null;
+            }
+        }
         super.onCatalystInstanceDestroy();
     }
 
     /**
-     * If the worker is queued, stores the worker information to be registered when enqueued
-     * if the worker is periodic, registers it and send back it's id
+     * Stores the worker information on the WorkerRegistry, where works read it from when they run,
+     * if the worker is periodic, also registers it and send back it's id
      * @param worker the worker information to be registered
      * @param constraints the worker constraints
      * @param p the promise to send back results to JS
@@ -81,73 +206,623 @@ public class BackgroundWorkerModule extends ReactContextBaseJavaModule {
             return;
         }
 
-        if(type.equals("queue")) {
+        if(!type.equals("queue") && !type.equals("periodic") && !type.equals("native")) {
+            p.reject("ERROR","incompatible worker type");
+            return;
+        }
+
+        if(type.equals("native") && (!worker.hasKey("url") || worker.hasKey("maxBatchSize"))) {
+            p.reject("ERROR","native workers need an url and can't be batched");
+            return;
+        }
+
+        String payloadType = worker.hasKey("payloadType") ? worker.getString("payloadType") : null;
+        if(payloadType!=null && !payloadType.equals("json") && worker.hasKey("maxBatchSize") && worker.getDouble("maxBatchSize")>1) {
+            p.reject("ERROR","batched workers only take json payloads");
+            return;
+        }
 
-            Constraints _constraints = Parser.getConstraints(constraints);
-            if(_constraints!=null) queuedConstraints.put(name, _constraints);
+        WorkerRegistry.Definition definition = registry.register(name, worker.toHashMap(), constraints!=null ? constraints.toHashMap() : null);
 
-            queuedWorkers.put(name, worker);
+        if(type.equals("queue") || type.equals("native")) {
             p.resolve(null);
             return;
+        }
+
+        schedule(definition, p);
 
+    }
+
+    /**
+     * Schedules a periodic worker according to its policy, keep leaves any live schedule alone, update only
+     * replaces it if the worker changed since it was scheduled and replace always starts a new one.
+     * Workers repeating every 15 minutes or more get a PeriodicWorkRequest, with the optional flexInterval,
+     * faster ones get a chain of one time works, see Schedule
+     * @param worker the registered worker information
+     * @param p the promise that receives the id of the live work
+     */
+    private void schedule(WorkerRegistry.Definition worker, Promise p) {
+
+        String policy = worker.getString("policy");
+        WorkManager workManager = WorkManagerConfiguration.getWorkManager(context);
+        ListenableFuture<List<WorkInfo>> futureInfos = workManager.getWorkInfosByTag(worker.name);
+
+        futureInfos.addListener(() -> {
+            try {
+
+                WorkInfo live = null;
+                for (WorkInfo info : futureInfos.get())
+                    if(!info.getState().isFinished()) live = info;
+
+                boolean keep = live!=null && ("keep".equals(policy)
+                        || (!"replace".equals(policy) && Schedule.version(context, worker.name)==worker.version));
+                if(keep) {
+                    p.resolve(live.getId().toString());
+                    return;
+                }
+
+                WorkRequest request;
+                if(Schedule.isShortInterval(worker)) {
+                    long now = System.currentTimeMillis();
+                    request = Schedule.tick(worker, now, now, null);
+                    Schedule.set(context, worker.name, worker.version, request.getId().toString());
+                    // the serial task executor cancels the old chain before the new tick is enqueued
+                    workManager.cancelAllWorkByTag(worker.name);
+                    workManager.enqueue(request);
+                }
+                else {
+                    long repeatInterval = Math.max(Schedule.MIN_PERIODIC_INTERVAL, worker.getInt("repeatInterval", Schedule.MIN_PERIODIC_INTERVAL));
+                    PeriodicWorkRequest.Builder builder = worker.has("flexInterval")
+                            ? new PeriodicWorkRequest.Builder(BackgroundWorker.class, repeatInterval, TimeUnit.MINUTES, worker.getInt("flexInterval", 0), TimeUnit.MINUTES)
+                            : new PeriodicWorkRequest.Builder(BackgroundWorker.class, repeatInterval, TimeUnit.MINUTES);
+                    Constraints constraints = worker.getConstraints();
+                    if(constraints!=null) builder.setConstraints(constraints);
+                    setBackoffCriteria(builder, worker);
+                    builder.addTag(WORK_TAG).addTag(worker.name);
+                    builder.setInputData(getInputData(worker).build());
+                    request = builder.build();
+                    Schedule.set(context, worker.name, worker.version, null);
+                    // a chain of ticks left by a faster version of the worker is not unique work
+                    workManager.cancelAllWorkByTag(worker.name);
+                    workManager.enqueueUniquePeriodicWork(worker.name, ExistingPeriodicWorkPolicy.REPLACE, (PeriodicWorkRequest) request);
+                }
+                // the first run of a schedule comes right away
+                BackgroundWorkerService.prewarm(context, worker, 0);
+                p.resolve(request.getId().toString());
+
+            } catch (Throwable e) { p.reject(e); }
+        }, callbackExecutor);
+
+    }
+
+    /**
+     * Enqueues payloads to a queued worker and returns the work's id
+     * @param worker name of the worker that will process the payload
+     * @param payload payload to be enqueued
+     * @param priority the lane of this payload, could be high, normal or low, the worker's when null
+     * @param p the promise to send back the work's id to JS
+     */
+    @ReactMethod
+    public void enqueue(String worker, String payload, @Nullable String priority, Promise p) {
+        try {
+            p.resolve(enqueuePayload(worker, payload, priority));
+        } catch (IllegalArgumentException e) {
+            p.reject("ERROR", e.getMessage());
+        } catch (IOException e) {
+            p.reject(e);
         }
-        if(type.equals("periodic")) {
+    }
+
+    /**
+     * Synchronous version of enqueue, it runs straight on the JS thread, skipping the native modules queue
+     * and the promise, JS falls back to enqueue when it returns null, which also reports the error.
+     * Only payloads that travel inline are enqueued here, stored payloads, file payloads and batched payloads
+     * touch the disk, so they are left to enqueue
+     * @param worker name of the worker that will process the payload
+     * @param payload payload to be enqueued
+     * @param priority the lane of this payload, could be high, normal or low, the worker's when null
+     * @return the work's id or null if it could not be enqueued here
+     */
+    @Nullable
+    @ReactMethod(isBlockingSynchronousMethod = true)
+    public String enqueueSync(String worker, String payload, @Nullable String priority) {
+        WorkerRegistry.Definition _worker = registry.get(worker);
+        if(_worker==null || isBatched(_worker) || !isInline(_worker, payload)) return null;
+        try {
+            return enqueuePayload(worker, payload, priority);
+        } catch (IllegalArgumentException | IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Builds and enqueues the work of a single payload, nothing is enqueued if it throws
+     * @param worker name of the worker that will process the payload
+     * @param payload payload to be enqueued
+     * @param priority the lane of this payload, the worker's when null
+     * @return the work's id
+     * @throws IllegalArgumentException if the worker is not registered or the priority is unknown
+     * @throws IOException if the payload could not be stored
+     */
+    private String enqueuePayload(String worker, String payload, @Nullable String priority) throws IOException {
+
+        WorkerRegistry.Definition _worker = registry.get(worker);
+
+        if(_worker==null) throw new IllegalArgumentException("worker not registered");
+
+        if(priority!=null && !Lanes.isLane(priority)) throw new IllegalArgumentException("incompatible priority");
+
+        // batched payloads share the flush work, which runs on the worker's lane
+        if(priority!=null && isBatched(_worker)) throw new IllegalArgumentException("batched workers can't enqueue with a priority of their own");
+
+        if(isBatched(_worker)) return enqueueToBatch(_worker, Collections.singletonList(payload)).get(0);
 
-            int repeatInterval = worker.getInt("repeatInterval");
-            Constraints _constraints = Parser.getConstraints(constraints);
+        WorkRequest request = queueRequestBuilder(_worker, payload, getInputData(_worker, priority)).build();
+        if(!isInline(_worker, payload)) PayloadStore.get(context).flush();
 
-            PeriodicWorkRequest.Builder builder = new PeriodicWorkRequest.Builder(BackgroundWorker.class, Math.max(15, repeatInterval), TimeUnit.MINUTES);
-            if(_constraints!=null) builder.setConstraints(_constraints);
+        WorkManagerConfiguration.getWorkManager(context).enqueue(request);
+        Metrics.enqueued(worker, 1);
+        BackgroundWorkerService.prewarm(context, _worker, 0);
 
-            Data inputData = new Data.Builder()
-                    .putAll(worker.toHashMap())
-                    .build();
+        return request.getId().toString();
 
-            builder.setInputData(inputData);
+    }
+
+    /**
+     * Enqueues many payloads to a queued worker at once, all requests are built in one pass and
+     * handed to WorkManager in a single enqueue, so they are persisted in one transaction
+     * @param worker name of the worker that will process the payloads
+     * @param payloads payloads to be enqueued
+     * @param priority the lane of these payloads, could be high, normal or low, the worker's when null
+     * @param p the promise to send back the works' ids to JS, in the same order as the payloads
+     */
+    @ReactMethod
+    public void enqueueBatch(String worker, ReadableArray payloads, @Nullable String priority, Promise p) {
 
-            PeriodicWorkRequest request = builder.build();
+        WorkerRegistry.Definition _worker = registry.get(worker);
 
-            WorkManager.getInstance(context).enqueueUniquePeriodicWork(name, ExistingPeriodicWorkPolicy.REPLACE, request);
-            p.resolve(request.getId().toString());
+        if(_worker==null) {
+            p.reject("ERROR", "worker not registered");
+            return;
+        }
+
+        if(priority!=null && !Lanes.isLane(priority)) {
+            p.reject("ERROR", "incompatible priority");
             return;
+        }
 
+        // batched payloads share the flush work, which runs on the worker's lane
+        if(priority!=null && isBatched(_worker)) {
+            p.reject("ERROR", "batched workers can't enqueue with a priority of their own");
+            return;
         }
-        p.reject("ERROR","incompatible worker type");
+
+        if(isBatched(_worker)) {
+            List<String> _payloads = new ArrayList<>(payloads.size());
+            for (int i = 0; i < payloads.size(); i++) _payloads.add(payloads.getString(i));
+            p.resolve(Arguments.fromList(enqueueToBatch(_worker, _payloads)));
+            return;
+        }
+
+        List<WorkRequest> requests = new ArrayList<>(payloads.size());
+        WritableArray ids = Arguments.createArray();
+
+        try {
+            for (int i = 0; i < payloads.size(); i++) {
+                WorkRequest request = queueRequestBuilder(_worker, payloads.getString(i), getInputData(_worker, priority)).build();
+                requests.add(request);
+                ids.pushString(request.getId().toString());
+            }
+            PayloadStore.get(context).flush();
+        } catch (IOException e) {
+            p.reject(e);
+            return;
+        }
+
+        if(!requests.isEmpty()) {
+            WorkManagerConfiguration.getWorkManager(context).enqueue(requests);
+            BackgroundWorkerService.prewarm(context, _worker, 0);
+        }
+        Metrics.enqueued(worker, requests.size());
+
+        p.resolve(ids);
 
     }
 
     /**
-     * Enqueues payloads to a queued worker and returns the work's id
+     * Enqueues a payload as the unique work of its key, the worker's name and the key name the unique work,
+     * if the worker deduplicates payloads and its work for the key is still enqueued the payload is merged
+     * into that work's payload instead, see DedupIndex
      * @param worker name of the worker that will process the payload
+     * @param key the payload's unique key
      * @param payload payload to be enqueued
-     * @param p the promise to send back the work's id to JS
+     * @param _policy what to do if there's already a work for the key, could be keep, replace, append or appendOrReplace,
+     *                defaults to appendOrReplace if the worker deduplicates payloads and to keep otherwise
+     * @param priority the lane of this payload, could be high, normal or low, the worker's when null
+     * @param p the promise to send back the id of the work that will process the payload
      */
     @ReactMethod
-    public void enqueue(String worker, String payload, Promise p) {
+    public void enqueueUnique(String worker, String key, String payload, @Nullable String _policy, @Nullable String priority, Promise p) {
 
-        ReadableMap _worker = queuedWorkers.get(worker);
-        Constraints _constraints = queuedConstraints.get(worker);
+        WorkerRegistry.Definition _worker = registry.get(worker);
 
         if(_worker==null) {
             p.reject("ERROR", "worker not registered");
             return;
         }
 
-        Data inputData = new Data.Builder()
-                .putAll(_worker.toHashMap())
-                .putString("payload", payload)
+        if(isBatched(_worker)) {
+            p.reject("ERROR", "batched workers can't enqueue unique works");
+            return;
+        }
+
+        String dedup = _worker.getString("dedup");
+        String policy = _policy!=null ? _policy : dedup!=null ? "appendOrReplace" : "keep";
+
+        if(!Arrays.asList("keep", "replace", "append", "appendOrReplace").contains(policy)) {
+            p.reject("ERROR", "incompatible policy");
+            return;
+        }
+
+        if(priority!=null && !Lanes.isLane(priority)) {
+            p.reject("ERROR", "incompatible priority");
+            return;
+        }
+
+        String uniqueName = worker + ":" + key;
+        DedupIndex index = DedupIndex.get(context);
+
+        OneTimeWorkRequest request;
+        try {
+            // a deduplicated payload stays on the index, where it can be merged until the work starts
+            request = dedup!=null
+                    ? queueRequestBuilder(_worker, null, getInputData(_worker, priority).putBoolean("deduplicated", true)).build()
+                    : queueRequestBuilder(_worker, payload, getInputData(_worker, priority)).build();
+            if(dedup==null) PayloadStore.get(context).flush();
+        } catch (IOException e) {
+            p.reject(e);
+            return;
+        }
+
+        final OneTimeWorkRequest uniqueRequest = request;
+        WorkManager workManager = WorkManagerConfiguration.getWorkManager(context);
+        ListenableFuture<List<WorkInfo>> futureInfos = workManager.getWorkInfosForUniqueWork(uniqueName);
+        // unique payloads are only merged and put on the callbackExecutor, along with the decision to enqueue,
+        // so no payload is merged into a work that the keep policy drops right after
+        futureInfos.addListener(() -> {
+            try {
+
+                if(dedup!=null) {
+                    String merged = index.merge(uniqueName, payload, dedup);
+                    if(merged!=null) {
+                        p.resolve(merged);
+                        return;
+                    }
+                }
+
+                WorkInfo current = null;
+                boolean failed = false;
+                for (WorkInfo info : futureInfos.get()) {
+                    if(!info.getState().isFinished()) current = info;
+                    else if(info.getState()!=WorkInfo.State.SUCCEEDED) failed = true;
+                }
+
+                if(policy.equals("keep") && current!=null) {
+                    p.resolve(current.getId().toString());
+                    return;
+                }
+
+                if(dedup!=null) index.put(uniqueName, uniqueRequest.getId().toString(), payload);
+
+                // appendOrReplace only came with WorkManager 2.4, a chain with failed or cancelled works is replaced,
+                // since works appended to it would fail right away, otherwise the work is appended
+                ExistingWorkPolicy existingWorkPolicy;
+                if(policy.equals("replace") || (policy.equals("appendOrReplace") && failed)) existingWorkPolicy = ExistingWorkPolicy.REPLACE;
+                else if(policy.equals("keep")) existingWorkPolicy = ExistingWorkPolicy.KEEP;
+                else existingWorkPolicy = ExistingWorkPolicy.APPEND;
+
+                workManager.enqueueUniqueWork(uniqueName, existingWorkPolicy, uniqueRequest);
+                Metrics.enqueued(worker, 1);
+                // an appended work waits for the one before it
+                if(current==null || existingWorkPolicy==ExistingWorkPolicy.REPLACE) BackgroundWorkerService.prewarm(context, _worker, 0);
+                p.resolve(uniqueRequest.getId().toString());
+
+            } catch (Throwable e) { p.reject(e); }
+        }, callbackExecutor);
+
+    }
+
+    /**
+     * Enqueues a pipeline in a single call, each stage runs once the previous one succeeded and receives
+     * its value as payload, see ChainInputMerger
+     * @param stages the stages in order, each one is a step or an array of steps that run in parallel,
+     *               a step is { worker, payload?, key? } and its key defaults to the worker's name
+     * @param p the promise to send back the works' ids to JS, keyed by the steps' keys
+     */
+    @ReactMethod
+    public void enqueueChain(ReadableArray stages, Promise p) {
+
+        WorkContinuation continuation = null;
+        WritableMap ids = Arguments.createMap();
+        List<String> workers = new ArrayList<>();
+        int parents = 0;
+
+        try {
+            for (int i = 0; i < stages.size(); i++) {
+                List<ReadableMap> steps = new ArrayList<>();
+                if(stages.getType(i) == ReadableType.Array) {
+                    ReadableArray stage = stages.getArray(i);
+                    for (int j = 0; j < stage.size(); j++) steps.add(stage.getMap(j));
+                }
+                else steps.add(stages.getMap(i));
+                if(steps.isEmpty()) continue;
+                List<OneTimeWorkRequest> requests = new ArrayList<>(steps.size());
+                for (ReadableMap step : steps) {
+                    String key = step.hasKey("key") && !step.isNull("key") ? step.getString("key") : step.getString("worker");
+                    OneTimeWorkRequest request = buildStepRequest(step, key, parents);
+                    requests.add(request);
+                    workers.add(step.getString("worker"));
+                    ids.putString(key, request.getId().toString());
+                }
+                continuation = continuation==null ? WorkManagerConfiguration.getWorkManager(context).beginWith(requests) : continuation.then(requests);
+                parents = requests.size();
+            }
+            PayloadStore.get(context).flush();
+        } catch (IllegalArgumentException e) {
+            p.reject("ERROR", e.getMessage());
+            return;
+        } catch (IOException e) {
+            p.reject(e);
+            return;
+        }
+
+        if(continuation==null) {
+            p.reject("ERROR", "empty chain");
+            return;
+        }
+
+        continuation.enqueue();
+        for (String worker : workers) Metrics.enqueued(worker, 1);
+        p.resolve(ids);
+
+    }
+
+    /**
+     * Enqueues a graph of steps in a single call, a step runs once every step it depends on succeeded,
+     * steps with many dependencies are joined with WorkContinuation.combine and receive their values keyed
+     * by the dependencies' keys, see ChainInputMerger
+     * @param nodes the steps, as { key, worker, payload?, after? }, where after lists the keys of the steps
+     *              it depends on, which must come before it
+     * @param p the promise to send back the works' ids to JS, keyed by the steps' keys
+     */
+    @ReactMethod
+    public void enqueueGraph(ReadableArray nodes, Promise p) {
+
+        HashMap<String, WorkContinuation> continuations = new HashMap<>();
+        Set<String> dependencies = new HashSet<>();
+        WritableMap ids = Arguments.createMap();
+        List<String> workers = new ArrayList<>();
+
+        try {
+            for (int i = 0; i < nodes.size(); i++) {
+                ReadableMap node = nodes.getMap(i);
+                String key = node.getString("key");
+                if(key==null || continuations.containsKey(key)) throw new IllegalArgumentException("invalid or repeated step key " + key);
+                List<WorkContinuation> parents = new ArrayList<>();
+                ReadableArray after = node.hasKey("after") && !node.isNull("after") ? node.getArray("after") : null;
+                if(after!=null) for (int j = 0; j < after.size(); j++) {
+                    WorkContinuation parent = continuations.get(after.getString(j));
+                    if(parent==null) throw new IllegalArgumentException("step " + key + " depends on unknown step " + after.getString(j));
+                    parents.add(parent);
+                    dependencies.add(after.getString(j));
+                }
+                OneTimeWorkRequest request = buildStepRequest(node, key, parents.size());
+                WorkContinuation continuation;
+                if(parents.isEmpty()) continuation = WorkManagerConfiguration.getWorkManager(context).beginWith(request);
+                else if(parents.size()==1) continuation = parents.get(0).then(request);
+                else continuation = WorkContinuation.combine(parents).then(request);
+                continuations.put(key, continuation);
+                workers.add(node.getString("worker"));
+                ids.putString(key, request.getId().toString());
+            }
+            PayloadStore.get(context).flush();
+        } catch (IllegalArgumentException e) {
+            p.reject("ERROR", e.getMessage());
+            return;
+        } catch (IOException e) {
+            p.reject(e);
+            return;
+        }
+
+        if(continuations.isEmpty()) {
+            p.reject("ERROR", "empty graph");
+            return;
+        }
+
+        // enqueueing a continuation enqueues every step before it, so only the leaves are enqueued
+        for (String key : continuations.keySet())
+            if(!dependencies.contains(key)) continuations.get(key).enqueue();
+        for (String worker : workers) Metrics.enqueued(worker, 1);
+        p.resolve(ids);
+
+    }
+
+    /**
+     * Builds the request of a chained step
+     * @param step the step, as { worker, payload? }
+     * @param key the step's key, its value is output under it
+     * @param parents how many steps this one depends on
+     * @return the request ready to be chained
+     */
+    private OneTimeWorkRequest buildStepRequest(ReadableMap step, String key, int parents) throws IOException {
+        String name = step.getString("worker");
+        WorkerRegistry.Definition worker = name!=null ? registry.get(name) : null;
+        if(worker==null) throw new IllegalArgumentException("worker not registered");
+        if(isBatched(worker)) throw new IllegalArgumentException("batched workers can't be chained");
+        String payload = step.hasKey("payload") && !step.isNull("payload") ? step.getString("payload") : null;
+        Data.Builder inputData = getInputData(worker)
+                .putString("step", key)
+                .putInt("parents", parents);
+        return queueRequestBuilder(worker, payload, inputData)
+                .setInputMerger(ChainInputMerger.class)
+                .build();
+    }
+
+    /**
+     * Batched workers don't create one work per payload, the payloads wait on the BatchStore and
+     * a single work hands up to maxBatchSize of them to JS
+     * @param worker the registered worker information
+     * @return true if the worker should run its payloads in batches
+     */
+    private static boolean isBatched(WorkerRegistry.Definition worker) {
+        return worker.getInt("maxBatchSize", 1) > 1;
+    }
+
+    /**
+     * @param worker the registered worker information
+     * @param payload the payload to be enqueued
+     * @return true if the payload goes inside the work's input Data as it is, without reaching the disk
+     */
+    private static boolean isInline(WorkerRegistry.Definition worker, @Nullable String payload) {
+        return payload==null || (payload.length()<=PayloadStore.INLINE_LIMIT && !"file".equals(worker.getString("payloadType")));
+    }
+
+    /**
+     * Works only carry the worker's name and version, the rest is read from the WorkerRegistry when they run
+     * @param worker the registered worker information
+     * @return the input data builder, ready to receive the payload
+     */
+    static Data.Builder getInputData(WorkerRegistry.Definition worker) {
+        return new Data.Builder()
+                .putString("name", worker.name)
+                .putInt("version", worker.version);
+    }
+
+    /**
+     * Same as getInputData, for a payload enqueued with its own priority
+     * @param worker the registered worker information
+     * @param priority the payload's lane, null to keep the worker's
+     * @return the input data builder, ready to receive the payload
+     */
+    private static Data.Builder getInputData(WorkerRegistry.Definition worker, @Nullable String priority) {
+        Data.Builder inputData = getInputData(worker);
+        if(priority!=null) inputData.putString("priority", priority);
+        return inputData;
+    }
+
+    /**
+     * @param file a file path or a file:// uri
+     * @return the file path
+     */
+    static String toPath(String file) {
+        return file.startsWith("file://") ? Uri.parse(file).getPath() : file;
+    }
+
+    /**
+     * Applies the worker's backoffPolicy and backoffDelay, in seconds, to its requests,
+     * WorkManager's default backoff is kept if the worker sets neither
+     * @param builder the request builder
+     * @param worker the registered worker information
+     */
+    static void setBackoffCriteria(WorkRequest.Builder<?, ?> builder, WorkerRegistry.Definition worker) {
+        BackoffPolicy policy = worker.getBackoffPolicy();
+        if(policy==null && !worker.has("backoffDelay")) return;
+        long delay = Math.max(WorkRequest.MIN_BACKOFF_MILLIS, TimeUnit.SECONDS.toMillis(worker.getInt("backoffDelay", 30)));
+        builder.setBackoffCriteria(policy!=null ? policy : BackoffPolicy.EXPONENTIAL, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stores payloads for a batched worker and schedules the work that will flush them, the flush waits
+     * maxBatchDelay seconds unless there's already enough payloads to fill a batch
+     * @param worker the registered worker information
+     * @param payloads payloads to be enqueued
+     * @return the payloads' logical ids
+     */
+    private List<String> enqueueToBatch(WorkerRegistry.Definition worker, List<String> payloads) {
+
+        BatchStore store = BatchStore.get(context, worker.name);
+        int maxBatchSize = worker.getInt("maxBatchSize", 1);
+        int maxBatchDelay = worker.getInt("maxBatchDelay", 0);
+
+        int before = store.pendingCount();
+        List<String> ids = store.add(payloads);
+        Metrics.enqueued(worker.name, ids.size());
+        boolean full = store.pendingCount() >= maxBatchSize;
+
+        // one flush is always on its way while there are pending payloads, an extra one is scheduled
+        // right away when the queue crosses maxBatchSize so a full batch doesn't wait for the delay
+        if(store.claimFlush() || (full && before < maxBatchSize)) {
+            WorkManagerConfiguration.getWorkManager(context).enqueue(flushRequest(worker, full ? 0 : maxBatchDelay));
+            BackgroundWorkerService.prewarm(context, worker, TimeUnit.SECONDS.toMillis(full ? 0 : maxBatchDelay));
+        }
+
+        return ids;
+
+    }
+
+    /**
+     * Builds the work that drains a batched worker's store, with the worker's constraints and backoff
+     * @param worker the registered worker information
+     * @param delay how many seconds the flush waits for more payloads, 0 to flush right away
+     * @return the flush request
+     */
+    static OneTimeWorkRequest flushRequest(WorkerRegistry.Definition worker, int delay) {
+
+        Data inputData = getInputData(worker)
+                .putBoolean("batch", true)
+                .putLong("enqueuedAt", System.currentTimeMillis())
                 .build();
 
         OneTimeWorkRequest.Builder builder = new OneTimeWorkRequest.Builder(BackgroundWorker.class)
-                .setInputData(inputData);
+                .setInputData(inputData)
+                .addTag(WORK_TAG)
+                .addTag(worker.name);
 
-        if(_constraints!=null) builder.setConstraints(_constraints);
+        Constraints constraints = worker.getConstraints();
+        if(constraints!=null) builder.setConstraints(constraints);
+        setBackoffCriteria(builder, worker);
+        if(delay>0) builder.setInitialDelay(delay, TimeUnit.SECONDS);
 
-        WorkRequest request = builder.build();
+        return builder.build();
 
-        p.resolve(request.getId().toString());
+    }
 
-        WorkManager.getInstance(context).enqueue(request);
+    /**
+     * Prepares the one time request that carries a payload to a queued worker, payloads bigger than
+     * PayloadStore.INLINE_LIMIT are written to the PayloadStore and the request only carries their handle,
+     * callers must flush the store before enqueueing the request
+     * @param worker the registered worker information
+     * @param payload payload to be processed
+     * @param inputData the work's input data, with anything the caller needs besides the payload
+     * @return the request builder, ready to be built
+     */
+    private OneTimeWorkRequest.Builder queueRequestBuilder(WorkerRegistry.Definition worker, @Nullable String payload, Data.Builder inputData) throws IOException {
+
+        // file payloads are references, the file itself is never copied, only checked
+        if(payload!=null && "file".equals(worker.getString("payloadType"))) {
+            payload = toPath(payload);
+            if(!new File(payload).isFile()) throw new FileNotFoundException(payload);
+        }
+
+        String payloadRef = payload!=null && payload.length()>PayloadStore.INLINE_LIMIT ? PayloadStore.get(context).put(payload) : null;
+        Constraints constraints = worker.getConstraints();
+
+        inputData.putLong("enqueuedAt", System.currentTimeMillis());
+        if(payloadRef!=null) inputData.putString("payloadRef", payloadRef);
+        else inputData.putString("payload", payload);
+
+        // native workers run their works without JS, see HttpWorker
+        OneTimeWorkRequest.Builder builder = new OneTimeWorkRequest.Builder("native".equals(worker.getString("type")) ? HttpWorker.class : BackgroundWorker.class)
+                .setInputData(inputData.build())
+                .addTag(WORK_TAG)
+                .addTag(worker.name);
+
+        if(payloadRef!=null) builder.addTag(PayloadStore.HANDLE_TAG + payloadRef);
+
+        if(constraints!=null) builder.setConstraints(constraints);
+        setBackoffCriteria(builder, worker);
+
+        return builder;
 
     }
 
@@ -157,12 +832,90 @@ public class BackgroundWorkerModule extends ReactContextBaseJavaModule {
      */
     @ReactMethod
     public void startHeadlessTask(ReadableMap workConfiguration) {
-        Intent headlessIntent = new Intent(context, BackgroundWorkerService.class);
         Bundle extras = Arguments.toBundle(workConfiguration);
-        if(extras!=null) headlessIntent.putExtras(extras);
-        if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.O)
-            BackgroundWorkerModule.this.getReactApplicationContext().startForegroundService(headlessIntent);
-        else BackgroundWorkerModule.this.getReactApplicationContext().startService(headlessIntent);
+        BackgroundWorkerService.start(getReactApplicationContext(), extras!=null ? extras : new Bundle());
+    }
+
+    /**
+     * Called from JS to know how the headless tasks are being started
+     * @param p the promise to send back the cold starts, warm starts and dispatches into a live service
+     */
+    @ReactMethod
+    public void headlessStats(Promise p) {
+        p.resolve(Arguments.fromBundle(BackgroundWorkerService.getStats()));
+    }
+
+    /**
+     * Called from JS to limit how many works of a priority lane reach JS at the same time
+     * @param lane the lane to be limited, normal or low, the high lane is never limited
+     * @param limit how many works of the lane can run at the same time
+     * @param p the promise to inform the JS side if the limit was set
+     */
+    @ReactMethod
+    public void setLaneConcurrency(String lane, int limit, Promise p) {
+        if(!Lanes.NORMAL.equals(lane) && !Lanes.LOW.equals(lane)) {
+            p.reject("ERROR", "incompatible lane");
+            return;
+        }
+        Lanes.setLimit(lane, limit);
+        p.resolve(null);
+    }
+
+    /**
+     * Called from JS to read the counters and latency histograms of every worker
+     * @param p the promise to send back the metrics, keyed by worker name
+     */
+    @ReactMethod
+    public void getMetrics(Promise p) {
+        execute(() -> {
+            try {
+                p.resolve(Arguments.fromBundle(collectMetrics()));
+            } catch (Throwable e) { p.reject(e); }
+        });
+    }
+
+    /**
+     * Reads the metrics of every worker, it waits for WorkManager's query of the unfinished works,
+     * so it must run on the callback executor
+     * @return the metrics, keyed by worker name
+     */
+    private Bundle collectMetrics() throws ExecutionException, InterruptedException {
+        List<WorkInfo> infos = WorkManagerConfiguration.getWorkManager(context).getWorkInfosByTag(WORK_TAG).get();
+        return Metrics.toBundle(Metrics.queueDepths(infos, BatchStore.depths(context)));
+    }
+
+    /**
+     * Runs a task on the callback executor, tasks arriving after the module was destroyed are dropped
+     * @param task the task to be run
+     */
+    private void execute(Runnable task) {
+        try {
+            callbackExecutor.execute(task);
+        } catch (RejectedExecutionException e) { Log.w("BackgroundWorkerModule", "module destroyed, task dropped"); }
+    }
+
+    /**
+     * Called from JS to receive the metrics periodically on the backgroundWorkerMetrics event
+     * @param interval milliseconds between two emissions, 0 stops them
+     */
+    @ReactMethod
+    public void setMetricsInterval(int interval) {
+        handler.post(() -> {
+            metricsInterval = Math.max(0, interval);
+            handler.removeCallbacks(emitMetrics);
+            if(metricsInterval>0) handler.postDelayed(emitMetrics, metricsInterval);
+        });
+    }
+
+    /**
+     * Called while the JS task runs to report its progress, reports are throttled before reaching WorkManager,
+     * the listeners and the notification, see Progress
+     * @param id the work's id for this task
+     * @param data the progress, as JSON
+     */
+    @ReactMethod
+    public void progress(String id, String data) {
+        Progress.report(id, data);
     }
 
     /**
@@ -170,13 +923,26 @@ public class BackgroundWorkerModule extends ReactContextBaseJavaModule {
      * @param id the work's id for this task
      * @param value the value returned by the task
      * @param result task's resolution, could be success, failure or retry
+     * @param attempt the attempt of the work the task ran for, as it was emitted, results of earlier attempts are ignored
      */
     @ReactMethod
-    public void result(String id, String value, String result) {
-        Intent intent = new Intent(id + "result");
-        intent.putExtra("result", result);
-        intent.putExtra("value", value);
-        LocalBroadcastManager.getInstance(context).sendBroadcast(intent);
+    public void result(String id, String value, String result, int attempt) {
+        CompletionRegistry.complete(id, attempt, value, result);
+    }
+
+    /**
+     * Synchronous version of result, the work wraps up without waiting behind other calls on the native modules queue,
+     * the JS thread only hands the result over, the work wraps up on the callback executor since it writes its result
+     * @param id the work's id for this task
+     * @param value the value returned by the task
+     * @param result task's resolution, could be success, failure or retry
+     * @param attempt the attempt of the work the task ran for, as it was emitted, results of earlier attempts are ignored
+     * @return always true, so JS can tell the call went through
+     */
+    @ReactMethod(isBlockingSynchronousMethod = true)
+    public boolean resultSync(String id, String value, String result, int attempt) {
+        execute(() -> CompletionRegistry.complete(id, attempt, value, result));
+        return true;
     }
 
     /**
@@ -186,16 +952,79 @@ public class BackgroundWorkerModule extends ReactContextBaseJavaModule {
      */
     @ReactMethod
     public void cancel(String id, final Promise p) {
-        final Operation operation = WorkManager.getInstance(context).cancelWorkById(UUID.fromString(id));
-        ListenableFuture<State.SUCCESS> futureSuccess = operation.getResult();
-        futureSuccess.addListener(() -> {
-            try {
+        BatchStore store = BatchStore.find(context, id);
+        if(store!=null) {
+            store.cancel(id);
+            p.resolve(null);
+            return;
+        }
+        DedupIndex.get(context).forget(id);
+        resolveOperations(Collections.singletonList(WorkManagerConfiguration.getWorkManager(context).cancelWorkById(UUID.fromString(id))), p);
+    }
 
-                State.SUCCESS success = futureSuccess.get();
-                p.resolve(success);
+    /**
+     * Called from JS to cancel many works at once
+     * @param ids the works' ids to be canceled
+     * @param p the promise to inform the JS side if all the works were really canceled
+     */
+    @ReactMethod
+    public void cancelMany(ReadableArray ids, final Promise p) {
+        WorkManager workManager = WorkManagerConfiguration.getWorkManager(context);
+        List<Operation> operations = new ArrayList<>(ids.size());
+        for (int i = 0; i < ids.size(); i++) {
+            String id = ids.getString(i);
+            BatchStore store = BatchStore.find(context, id);
+            if(store!=null) store.cancel(id);
+            else {
+                DedupIndex.get(context).forget(id);
+                operations.add(workManager.cancelWorkById(UUID.fromString(id)));
+            }
+        }
+        resolveOperations(operations, p);
+    }
+
+    /**
+     * Called from JS to cancel every work of some worker, both the enqueued ones and the periodic one
+     * @param name the worker's name
+     * @param p the promise to inform the JS side if the works were really canceled
+     */
+    @ReactMethod
+    public void cancelAll(String name, final Promise p) {
+        WorkManager workManager = WorkManagerConfiguration.getWorkManager(context);
+        BatchStore.get(context, name).cancelAll();
+        DedupIndex.get(context).forgetAll(name);
+        Schedule.clear(context, name);
+        resolveOperations(Arrays.asList(workManager.cancelAllWorkByTag(name), workManager.cancelUniqueWork(name)), p);
+    }
+
+    /**
+     * Waits for operations on the callback executor and informs JS once all of them succeeded,
+     * or as soon as one of them fails
+     * @param operations the operations to wait for
+     * @param p the promise to inform the JS side
+     */
+    private void resolveOperations(List<Operation> operations, final Promise p) {
+
+        if(operations.isEmpty()) {
+            p.resolve(null);
+            return;
+        }
+
+        final AtomicInteger remaining = new AtomicInteger(operations.size());
+        final AtomicBoolean failed = new AtomicBoolean(false);
+
+        for (Operation operation : operations) {
+            final ListenableFuture<State.SUCCESS> futureSuccess = operation.getResult();
+            futureSuccess.addListener(() -> {
+                try {
+
+                    futureSuccess.get();
+                    if(remaining.decrementAndGet()==0) p.resolve(null);
+
+                } catch (Throwable e) { if(failed.compareAndSet(false, true)) p.reject(e); }
+            }, callbackExecutor);
+        }
 
-            } catch (Throwable e) { p.reject(e); }
-        },Executors.newSingleThreadExecutor());
     }
 
     /**
@@ -205,13 +1034,143 @@ public class BackgroundWorkerModule extends ReactContextBaseJavaModule {
      */
     @ReactMethod
     public void info(String id, final Promise p) {
-        ListenableFuture<WorkInfo> futureInfo = WorkManager.getInstance(context).getWorkInfoById(UUID.fromString(id));
-        try {
-            WorkInfo info = futureInfo.get();
-            p.resolve(Arguments.fromBundle(Parser.getWorkInfo(info)));
-        } catch (Throwable e) {
-            p.reject(e);
+        BatchStore store = BatchStore.find(context, id);
+        if(store!=null) {
+            p.resolve(Arguments.fromBundle(store.getInfo(id)));
+            return;
+        }
+        // finished works are answered from the ResultStore, without querying WorkManager
+        Bundle stored = ResultStore.get(context).getInfo(id);
+        if(stored!=null) {
+            p.resolve(Arguments.fromBundle(stored));
+            return;
+        }
+        ListenableFuture<WorkInfo> futureInfo = WorkManagerConfiguration.getWorkManager(context).getWorkInfoById(UUID.fromString(id));
+        futureInfo.addListener(() -> {
+            try {
+
+                WorkInfo info = futureInfo.get();
+                if(info==null) p.reject("ERROR", "work not found");
+                else p.resolve(Arguments.fromBundle(Parser.getWorkInfo(info, ResultStore.get(context))));
+
+            } catch (Throwable e) { p.reject(e); }
+        }, callbackExecutor);
+    }
+
+    /**
+     * Synchronous version of info for the works whose info is in memory, batched payloads of the stores already
+     * loaded and finished works whose result is cached, the others need the disk or a query to WorkManager's
+     * database, which must not block the JS thread
+     * @param id the work's id
+     * @return the work's info or null if JS should fall back to info
+     */
+    @Nullable
+    @ReactMethod(isBlockingSynchronousMethod = true)
+    public WritableMap infoSync(String id) {
+        BatchStore store = BatchStore.peek(id);
+        ResultStore results = ResultStore.peek();
+        Bundle info = store!=null ? store.getInfo(id) : results!=null ? results.getCachedInfo(id) : null;
+        return info!=null ? Arguments.fromBundle(info) : null;
+    }
+
+    /**
+     * Called from JS to get the instant information about many works in a single query,
+     * works that are not found are left out of the result
+     * @param ids the works' ids
+     * @param p the promise to send back to JS an object with the info of each work, keyed by id
+     */
+    @ReactMethod
+    public void infos(ReadableArray ids, final Promise p) {
+
+        final WritableMap result = Arguments.createMap();
+        final HashSet<String> _ids = new HashSet<>();
+
+        for (int i = 0; i < ids.size(); i++) {
+            String id = ids.getString(i);
+            BatchStore store = BatchStore.find(context, id);
+            Bundle info = store!=null ? store.getInfo(id) : ResultStore.get(context).getInfo(id);
+            if(info!=null) result.putMap(id, Arguments.fromBundle(info));
+            else _ids.add(id);
+        }
+
+        if(_ids.isEmpty()) {
+            p.resolve(result);
+            return;
         }
+
+        resolveInfos(WorkManagerConfiguration.getWorkManager(context).getWorkInfosByTag(WORK_TAG), _ids, result, p);
+
+    }
+
+    /**
+     * Called from JS to get the instant information about every work of some worker in a single query,
+     * finished works already pruned by WorkManager are still sent while the ResultStore keeps them
+     * @param name the worker's name
+     * @param p the promise to send back to JS an object with the info of each work, keyed by id
+     */
+    @ReactMethod
+    public void infosByWorker(String name, final Promise p) {
+        WritableMap result = Arguments.createMap();
+        for (Map.Entry<String, Bundle> entry : ResultStore.get(context).getInfos(name, 0).entrySet())
+            result.putMap(entry.getKey(), Arguments.fromBundle(entry.getValue()));
+        resolveInfos(WorkManagerConfiguration.getWorkManager(context).getWorkInfosByTag(name), null, result, p);
+    }
+
+    /**
+     * Called from JS to get the results of some worker straight from the ResultStore
+     * @param name the worker's name
+     * @param since only results of works finished after this time, in milliseconds, are sent
+     * @param p the promise to send back to JS an object with the info of each finished work, keyed by id
+     */
+    @ReactMethod
+    public void results(String name, double since, Promise p) {
+        WritableMap result = Arguments.createMap();
+        for (Map.Entry<String, Bundle> entry : ResultStore.get(context).getInfos(name, (long) since).entrySet())
+            result.putMap(entry.getKey(), Arguments.fromBundle(entry.getValue()));
+        p.resolve(result);
+    }
+
+    /**
+     * Called from JS to tune WorkManager, the options are persisted and take effect the next time WorkManager
+     * is initialized, options set from the app win over them, see WorkManagerConfiguration
+     * @param options executorThreads and maxSchedulerLimit, missing ones fall back to WorkManager's defaults
+     */
+    @ReactMethod
+    public void configureWorkManager(ReadableMap options) {
+        int executorThreads = options.hasKey("executorThreads") ? options.getInt("executorThreads") : 0;
+        int maxSchedulerLimit = options.hasKey("maxSchedulerLimit") ? options.getInt("maxSchedulerLimit") : 0;
+        WorkManagerConfiguration.persist(context, executorThreads, maxSchedulerLimit);
+    }
+
+    /**
+     * Called from JS to bound the ResultStore
+     * @param ttl how long results are kept, in seconds
+     * @param maxSize how many bytes results can take on disk
+     */
+    @ReactMethod
+    public void configureResults(double ttl, double maxSize) {
+        ResultStore.get(context).configure(TimeUnit.SECONDS.toMillis((long) ttl), (long) maxSize);
+    }
+
+    /**
+     * Waits for a query on the callback executor and sends the infos found back to JS
+     * @param futureInfos the query
+     * @param ids if not null, only works with these ids are sent
+     * @param result the object that will be filled with the infos, keyed by id
+     * @param p the promise to send the infos back to JS
+     */
+    private void resolveInfos(ListenableFuture<List<WorkInfo>> futureInfos, @Nullable Set<String> ids, WritableMap result, Promise p) {
+        futureInfos.addListener(() -> {
+            try {
+
+                for (WorkInfo info : futureInfos.get()) {
+                    String id = info.getId().toString();
+                    if(ids==null || ids.contains(id)) result.putMap(id, Arguments.fromBundle(Parser.getWorkInfo(info, ResultStore.get(context))));
+                }
+                p.resolve(result);
+
+            } catch (Throwable e) { p.reject(e); }
+        }, callbackExecutor);
     }
 
     /**
@@ -223,27 +1182,51 @@ public class BackgroundWorkerModule extends ReactContextBaseJavaModule {
     @ReactMethod
     public void addListener(String id) {
 
-        if(listeners.containsKey(id)) return;
+        BatchStore store = BatchStore.find(context, id);
+        if(store!=null) {
+            BatchStore.watch(id);
+            Emitter.emit(id+"info", store.getInfo(id));
+            return;
+        }
 
-        final LiveData<WorkInfo> data = WorkManager.getInstance(context).getWorkInfoByIdLiveData(UUID.fromString(id));
+        final LiveData<WorkInfo> data = WorkManagerConfiguration.getWorkManager(context).getWorkInfoByIdLiveData(UUID.fromString(id));
 
+        // observed on the main thread, the info is built on the callback executor since it reads the ResultStore
         final Observer<WorkInfo> listener = workInfo -> {
             if (workInfo == null) return;
-            context.getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
-                    .emit(id+"info", Arguments.fromBundle(Parser.getWorkInfo(workInfo)));
+            execute(() -> Emitter.emit(id+"info", Parser.getWorkInfo(workInfo, ResultStore.get(context))));
         };
 
-        handler.post(() -> {
-            data.observeForever(listener);
-            listeners.put(id, listener);
-        });
+        // claimed before observing, so concurrent calls for the same work never observe it twice
+        if(listeners.putIfAbsent(id, new Listener(data, listener))!=null) return;
+
+        handler.post(() -> data.observeForever(listener));
 
         WorkInfo info = data.getValue();
-        if(info!=null) context.getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
-                .emit(id+"info", Arguments.fromBundle(Parser.getWorkInfo(info)));
+        if(info!=null) Emitter.emit(id+"info", Parser.getWorkInfo(info, ResultStore.get(context)));
 
     }
 
+    /**
+     * Subscribes to the multiplexed info channel, changes on the work's info will be sent together with
+     * the changes of every other subscribed work in a single "workInfos" event
+     * @param id the work's id that one wants to listen
+     */
+    @ReactMethod
+    public void subscribe(String id) {
+        channel.subscribe(id);
+    }
+
+    /**
+     * Removes one subscription from the multiplexed info channel, the work is only unwatched
+     * when all of its subscribers are gone
+     * @param id the work's id that one wants to unsubscribe
+     */
+    @ReactMethod
+    public void unsubscribe(String id) {
+        channel.unsubscribe(id);
+    }
+
     /**
      * Method to remove a listener from JS, it has problems when one work has multiple listener and
      * one of them unsubscribes, should set some counter
@@ -252,16 +1235,14 @@ public class BackgroundWorkerModule extends ReactContextBaseJavaModule {
     @ReactMethod
     public void removeListener(String id) {
 
-        Observer<WorkInfo> listener = listeners.get(id);
+        BatchStore.unwatch(id);
 
-        if(listener==null) return;
+        Listener listener = listeners.remove(id);
 
-        final LiveData<WorkInfo> data = WorkManager.getInstance(context).getWorkInfoByIdLiveData(UUID.fromString(id));
+        if(listener==null) return;
 
-        handler.post(() -> {
-            data.removeObserver(listener);
-            listeners.remove(id);
-        });
+        // posted after the observe of addListener, so the observer is always attached by then
+        handler.post(() -> listener.data.removeObserver(listener.observer));
 
     }
 
@@ -1,5 +1,9 @@
 package com.backgroundworker;
 
+import android.content.Context;
+
+import androidx.work.Configuration;
+
 import com.facebook.react.ReactPackage;
 import com.facebook.react.bridge.NativeModule;
 import com.facebook.react.bridge.ReactApplicationContext;
@@ -10,6 +14,33 @@ import java.util.Collections;
 import java.util.List;
 
 public class BackgroundWorkerPackage implements ReactPackage {
+
+    public BackgroundWorkerPackage() {}
+
+    /**
+     * @param options the WorkManager options of the app, they must be set before WorkManager is initialized,
+     *                so apps initializing it on demand should rather call setWorkManagerOptions on Application.onCreate
+     */
+    public BackgroundWorkerPackage(WorkManagerConfiguration.Options options) {
+        setWorkManagerOptions(options);
+    }
+
+    /**
+     * @param options the WorkManager options of the app, see WorkManagerConfiguration
+     */
+    public static void setWorkManagerOptions(WorkManagerConfiguration.Options options) {
+        WorkManagerConfiguration.setOptions(options);
+    }
+
+    /**
+     * Meant to be returned by the Application's Configuration.Provider
+     * @param context any context
+     * @return the WorkManager configuration of the library
+     */
+    public static Configuration getWorkManagerConfiguration(Context context) {
+        return WorkManagerConfiguration.get(context);
+    }
+
     @Override
     public List<NativeModule> createNativeModules(ReactApplicationContext reactContext) {
         return Arrays.<NativeModule>asList(new BackgroundWorkerModule(reactContext));
@@ -5,18 +5,407 @@ import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.BatteryManager;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.PowerManager;
 
 import com.facebook.react.HeadlessJsTaskService;
+import com.facebook.react.ReactApplication;
+import com.facebook.react.ReactInstanceManager;
 import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.ReactContext;
 import com.facebook.react.jstasks.HeadlessJsTaskConfig;
+import com.facebook.react.jstasks.HeadlessJsTaskContext;
 
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.Nullable;
 
 public class BackgroundWorkerService extends HeadlessJsTaskService {
 
+    private static final int NOTIFICATION_ID = 123456789;
+
+    // how long before the end of a work's delay react starts booting
+    private static final long PREWARM_LEAD = TimeUnit.SECONDS.toMillis(10);
+    // the level under which android reports the battery as low, WorkManager uses the same
+    private static final int BATTERY_LOW_PERCENT = 15;
+
+    private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private static final AtomicLong coldStarts = new AtomicLong();
+    private static final AtomicLong warmStarts = new AtomicLong();
+    private static final AtomicLong dispatches = new AtomicLong();
+
+    // the service currently alive, only touched on the main thread
+    private static BackgroundWorkerService instance;
+
+    /**
+     * A headless task and the worker information needed to schedule it and to show it on the notification
+     */
+    private static class Task {
+        final String id;
+        final String name;
+        final String title;
+        final String text;
+        final int concurrency;
+        final HeadlessJsTaskConfig config;
+        int percent = -1;
+        Task(String id, String name, String title, String text, int concurrency, HeadlessJsTaskConfig config) {
+            this.id = id;
+            this.name = name;
+            this.title = title;
+            this.text = text;
+            this.concurrency = concurrency;
+            this.config = config;
+        }
+    }
+
+    // the dispatcher state, only touched on the main thread
+    private final ArrayDeque<Task> pending = new ArrayDeque<>();
+    private final List<Task> waitingForReact = new ArrayList<>();
+    private final HashMap<Integer, Task> running = new HashMap<>();
+    private final HashMap<String, Integer> runningByWorker = new HashMap<>();
+    private int received = 0;
+    private int finished = 0;
+    @Nullable private Task shown;
+
+    private final Runnable stop = () -> {
+        stopping = true;
+        stopSelf();
+    };
+    private boolean stopping = false;
+    private long keepAlive = 0;
+    // held from the first task until the service goes idle, never through the keepAlive wait
+    @Nullable private PowerManager.WakeLock wakeLock;
+
+    /**
+     * Starts a task, if the service is still alive the task is dispatched straight into it,
+     * otherwise the service is started, in foreground on recent versions of android
+     * @param context any context
+     * @param extras the entire info to run the work
+     */
+    static void start(Context context, Bundle extras) {
+        mainHandler.post(() -> {
+            BackgroundWorkerService service = instance;
+            if(service!=null && !service.stopping) {
+                dispatches.incrementAndGet();
+                service.dispatch(new Intent(context, BackgroundWorkerService.class).putExtras(extras));
+            }
+            else startService(context, extras);
+        });
+    }
+
+    private static void startService(Context context, Bundle extras) {
+        Intent headlessIntent = new Intent(context, BackgroundWorkerService.class);
+        headlessIntent.putExtras(extras);
+        if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.O)
+            context.startForegroundService(headlessIntent);
+        else context.startService(headlessIntent);
+    }
+
+    /**
+     * Starts creating the react context ahead of time, so a task about to run doesn't pay for the cold start,
+     * it can also be called by the app, for instance when a push message announces work
+     * @param context any context
+     */
+    public static void prewarm(Context context) {
+        mainHandler.post(() -> {
+            if(!(context.getApplicationContext() instanceof ReactApplication)) return;
+            ReactInstanceManager manager = ((ReactApplication) context.getApplicationContext()).getReactNativeHost().getReactInstanceManager();
+            if(!manager.hasStartedCreatingInitialContext()) manager.createReactContextInBackground();
+        });
+    }
+
+    /**
+     * Starts booting react ahead of a work of a prewarmed worker, once the work is close to running: its delay is
+     * over, or about to be, and the device already meets its constraints, so WorkManager is about to start it.
+     * Works whose constraints are not met yet are left to the headless service, they could wait for hours
+     * @param context any context
+     * @param worker the registered worker information
+     * @param delay how many milliseconds the work waits before it can run
+     */
+    static void prewarm(Context context, WorkerRegistry.Definition worker, long delay) {
+        if(!Boolean.TRUE.equals(worker.worker.get("prewarm"))) return;
+        if(delay>PREWARM_LEAD) {
+            // only as long as the process lives, a work that outlives it reaches JS through the headless service
+            mainHandler.postDelayed(() -> prewarm(context, worker, 0), delay - PREWARM_LEAD);
+            return;
+        }
+        if(areMet(context, worker.constraints)) prewarm(context);
+    }
+
+    /**
+     * An approximation of WorkManager's own constraint tracking, good enough to tell if a work is about to run
+     * @param context any context
+     * @param constraints the worker's constraints, as registered
+     * @return true if the device currently meets the constraints
+     */
+    private static boolean areMet(Context context, @Nullable Map<String, Object> constraints) {
+
+        if(constraints==null) return true;
+
+        // the device only goes idle once the user is away, nobody waits for these works
+        if("idle".equals(constraints.get("idle"))) return false;
+
+        Object network = constraints.get("network");
+        if(network!=null && !"notRequired".equals(network)) {
+            ConnectivityManager connectivity = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+            NetworkInfo info = connectivity!=null ? connectivity.getActiveNetworkInfo() : null;
+            if(info==null || !info.isConnected()) return false;
+            if("unmetered".equals(network) && connectivity.isActiveNetworkMetered()) return false;
+            if("metered".equals(network) && !connectivity.isActiveNetworkMetered()) return false;
+            if("notRoaming".equals(network) && info.isRoaming()) return false;
+        }
+
+        Object battery = constraints.get("battery");
+        if("charging".equals(battery) || "notLow".equals(battery)) {
+            Intent status = context.getApplicationContext().registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+            if(status==null) return false;
+            boolean plugged = status.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0)!=0;
+            if("charging".equals(battery)) return plugged;
+            int level = status.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+            int scale = status.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+            return plugged || (level>=0 && scale>0 && level * 100 > scale * BATTERY_LOW_PERCENT);
+        }
+
+        return true;
+
+    }
+
+    /**
+     * Shows the progress reported by a running work on the notification, if the work is one of the service's tasks,
+     * the progress is shown when it is a number or an object with a percent field, from 0 to 100
+     * @param id the work's id
+     * @param data the progress, as JSON
+     */
+    static void progress(String id, String data) {
+        mainHandler.post(() -> {
+            BackgroundWorkerService service = instance;
+            if(service==null || id==null) return;
+            Task task = null;
+            for (Task _task : service.running.values()) if(id.equals(_task.id)) task = _task;
+            if(task==null) return;
+            int percent = getPercent(data);
+            if(percent==task.percent) return;
+            task.percent = percent;
+            service.shown = task;
+            service.updateNotification();
+        });
+    }
+
+    private static int getPercent(String data) {
+        try {
+            Object progress = new JSONTokener(data).nextValue();
+            double percent = progress instanceof Number ? ((Number) progress).doubleValue()
+                    : progress instanceof JSONObject ? ((JSONObject) progress).optDouble("percent", -1) : -1;
+            return percent < 0 ? -1 : (int) Math.min(100, percent);
+        } catch (JSONException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return how many tasks had to wait for react to start, how many ran on a live react context
+     * and how many were dispatched into a live service
+     */
+    static Bundle getStats() {
+        Bundle stats = new Bundle();
+        stats.putDouble("coldStarts", coldStarts.get());
+        stats.putDouble("warmStarts", warmStarts.get());
+        stats.putDouble("dispatches", dispatches.get());
+        return stats;
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        instance = this;
+    }
+
+    @Override
+    public void onDestroy() {
+        if(instance==this) instance = null;
+        mainHandler.removeCallbacks(stop);
+        releaseWakeLock();
+        super.onDestroy();
+    }
+
+    /**
+     * Every intent becomes a task on the dispatcher instead of being started right away
+     */
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if(intent==null || !dispatch(intent)) return START_NOT_STICKY;
+        return START_REDELIVER_INTENT;
+    }
+
+    private boolean dispatch(Intent intent) {
+
+        Bundle extras = intent.getExtras();
+        HeadlessJsTaskConfig config = getTaskConfig(intent);
+        if(extras==null || config==null) return false;
+
+        Object concurrency = extras.get("concurrency");
+        Task task = new Task(
+                extras.getString("id"),
+                extras.getString("name"),
+                extras.getString("title"),
+                extras.getString("text"),
+                concurrency instanceof Number ? Math.max(1, ((Number) concurrency).intValue()) : Integer.MAX_VALUE,
+                config);
+
+        mainHandler.removeCallbacks(stop);
+        stopping = false;
+        received++;
+        shown = task;
+        // high priority tasks go ahead of the ones waiting for a concurrency slot
+        if(Lanes.HIGH.equals(extras.getString("priority"))) pending.addFirst(task);
+        else pending.add(task);
+        schedule();
+        return true;
+
+    }
+
+    /**
+     * Starts every pending task whose worker is below its concurrency limit
+     */
+    private void schedule() {
+        Iterator<Task> tasks = pending.iterator();
+        while (tasks.hasNext()) {
+            Task task = tasks.next();
+            Integer count = runningByWorker.get(task.name);
+            if(count!=null && count>=task.concurrency) continue;
+            tasks.remove();
+            runningByWorker.put(task.name, count==null ? 1 : count+1);
+            run(task);
+        }
+        updateNotification();
+    }
+
+    private void run(Task task) {
+
+        acquireWakeLock();
+
+        final ReactInstanceManager manager = getReactNativeHost().getReactInstanceManager();
+        ReactContext reactContext = manager.getCurrentReactContext();
+
+        if(reactContext!=null) {
+            warmStarts.incrementAndGet();
+            invoke(reactContext, task);
+            return;
+        }
+
+        coldStarts.incrementAndGet();
+        waitingForReact.add(task);
+        if(waitingForReact.size()>1) return;
+
+        manager.addReactInstanceEventListener(new ReactInstanceManager.ReactInstanceEventListener() {
+            @Override
+            public void onReactContextInitialized(ReactContext context) {
+                manager.removeReactInstanceEventListener(this);
+                for (Task waiting : waitingForReact) invoke(context, waiting);
+                waitingForReact.clear();
+            }
+        });
+        if(!manager.hasStartedCreatingInitialContext()) manager.createReactContextInBackground();
+
+    }
+
+    private void invoke(ReactContext reactContext, Task task) {
+        HeadlessJsTaskContext headlessJsTaskContext = HeadlessJsTaskContext.getInstance(reactContext);
+        headlessJsTaskContext.addTaskEventListener(this);
+        running.put(headlessJsTaskContext.startTask(task.config), task);
+    }
+
+    /**
+     * Frees the finished task's slot for the next pending one, once nothing is left the service waits
+     * for the longest keepAlive among the tasks it ran, so the following tasks find it, and react, still warm
+     * @param taskId the finished task
+     */
+    @Override
+    public void onHeadlessJsTaskFinish(int taskId) {
+
+        Task task = running.remove(taskId);
+        if(task==null) return;
+
+        Integer count = runningByWorker.get(task.name);
+        if(count==null || count<=1) runningByWorker.remove(task.name);
+        else runningByWorker.put(task.name, count-1);
+        finished++;
+
+        schedule();
+
+        if(!running.isEmpty() || !pending.isEmpty() || !waitingForReact.isEmpty()) return;
+        received = 0;
+        finished = 0;
+        releaseWakeLock();
+        mainHandler.removeCallbacks(stop);
+        mainHandler.postDelayed(stop, keepAlive);
+
+    }
+
+    /**
+     * Keeps the CPU awake while tasks run, unlike HeadlessJsTaskService's own wake lock, which is only released
+     * when the service is destroyed, this one can be released as soon as the service goes idle
+     */
+    private void acquireWakeLock() {
+        if(wakeLock==null) {
+            PowerManager powerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
+            wakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, BackgroundWorkerService.class.getCanonicalName());
+            wakeLock.setReferenceCounted(false);
+        }
+        if(!wakeLock.isHeld()) wakeLock.acquire();
+    }
+
+    private void releaseWakeLock() {
+        if(wakeLock!=null && wakeLock.isHeld()) wakeLock.release();
+    }
+
+    /**
+     * All tasks share a single foreground notification, it shows the latest task's worker and,
+     * when there are more tasks, how many are left and the progress across all of them
+     */
+    private void updateNotification() {
+
+        if (android.os.Build.VERSION.SDK_INT < android.os.Build.VERSION_CODES.O || shown==null) return;
+
+        NotificationChannel channel = new NotificationChannel(shown.name, shown.name, NotificationManager.IMPORTANCE_MIN);
+        NotificationManager notificationManager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+        notificationManager.createNotificationChannel(channel);
+
+        Notification.Builder builder = new Notification.Builder(this, shown.name)
+                .setWhen(System.currentTimeMillis())
+                .setContentText(shown.text)
+                .setContentTitle(shown.title)
+                .setOnlyAlertOnce(true)
+                .setSmallIcon(getResources().getIdentifier(shown.name,"drawable",getApplicationContext().getPackageName()));
+
+        if(received>1) {
+            int left = running.size() + pending.size() + waitingForReact.size();
+            builder.setSubText(left + "/" + received)
+                    .setProgress(received, finished, false);
+        }
+        else if(shown.percent>=0) builder.setProgress(100, shown.percent, false);
+
+        startForeground(NOTIFICATION_ID, builder.build());
+
+    }
+
     /**
      * The Headless task should start in foreground in recent versions of android and thus showing
      * a notification, the intent should contain all the relevant information
@@ -39,26 +428,12 @@ public class BackgroundWorkerService extends HeadlessJsTaskService {
         String text = extras.getString("text");
         assert text!=null;
 
-        int timeout = extras.getInt("timeout");
-
-        String id = extras.getString("id");
-
-        if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.O) {
-
-            NotificationChannel channel = new NotificationChannel(name, name, NotificationManager.IMPORTANCE_MIN);
-            NotificationManager notificationManager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
-            notificationManager.createNotificationChannel(channel);
+        // numbers coming from JS are doubles while the ones read from the WorkerRegistry are integers
+        Object _timeout = extras.get("timeout");
+        int timeout = _timeout instanceof Number ? ((Number) _timeout).intValue() : 10;
 
-            Notification notification = new Notification.Builder(this, name)
-                    .setWhen(System.currentTimeMillis())
-                    .setContentText(text)
-                    .setContentTitle(title)
-                    .setSmallIcon(getResources().getIdentifier(name,"drawable",getApplicationContext().getPackageName()))
-                    .build();
-
-            startForeground(id==null? 123456789 : id.hashCode(), notification);
-
-        }
+        Object _keepAlive = extras.get("keepAlive");
+        if(_keepAlive instanceof Number) keepAlive = Math.max(keepAlive, TimeUnit.SECONDS.toMillis(((Number) _keepAlive).longValue()));
 
         return new HeadlessJsTaskConfig(name, Arguments.fromBundle(extras), TimeUnit.MINUTES.toMillis(timeout), true);
 
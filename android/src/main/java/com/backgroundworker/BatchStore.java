@@ -0,0 +1,451 @@
+package com.backgroundworker;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.Nullable;
+
+/**
+ * Local store for the payloads of a batched queue worker, payloads wait here until a single work
+ * drains up to maxBatchSize of them and hands them all to JS at once.
+ * Each payload keeps its own logical id, state and value so it can be consulted as if it was a regular work.
+ * Many flush works can drain the same store at once, so running payloads remember the flush that drained them
+ * and each flush only resolves or requeues its own.
+ * Everything is kept in memory and mirrored to a file so pending payloads survive process death, the file is written
+ * and synced outside the store's monitor, so an enqueue never waits for another one's fsync while holding it.
+ */
+class BatchStore {
+
+    private static final String TAG = "BatchStore";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final long RESULT_TTL = 24 * 60 * 60 * 1000;
+    private static final ConcurrentHashMap<String, BatchStore> stores = new ConcurrentHashMap<>();
+    private static final Set<String> watched = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    private static volatile boolean loaded;
+
+    private final File file;
+    // held while the file is written, so snapshots reach the disk in order
+    private final Object fileLock = new Object();
+    // bumped by every change, the file holds the snapshot of persistedVersion
+    private long version;
+    private long persistedVersion;
+    private final LinkedHashMap<String, JSONObject> pending = new LinkedHashMap<>();
+    private final LinkedHashMap<String, JSONObject> running = new LinkedHashMap<>();
+    private final LinkedHashMap<String, JSONObject> finished = new LinkedHashMap<>();
+    private boolean flushScheduled;
+
+    private BatchStore(File file) {
+        this.file = file;
+        JSONObject stored = read(file);
+        // payloads that were running when the process died are handed back to the queue
+        load(stored.optJSONArray("running"), pending);
+        load(stored.optJSONArray("pending"), pending);
+        load(stored.optJSONArray("finished"), finished);
+        for (JSONObject item : pending.values()) item.remove("flush");
+        flushScheduled = stored.optBoolean("flushScheduled", false);
+    }
+
+    private static void load(@Nullable JSONArray items, LinkedHashMap<String, JSONObject> target) {
+        if(items == null) return;
+        for (int i = 0; i < items.length(); i++) {
+            JSONObject item = items.optJSONObject(i);
+            if(item != null) target.put(item.optString("id"), item);
+        }
+    }
+
+    static BatchStore get(Context context, String worker) {
+        BatchStore store = stores.get(worker);
+        if(store != null) return store;
+        store = new BatchStore(new File(getDir(context), worker + ".json"));
+        BatchStore previous = stores.putIfAbsent(worker, store);
+        return previous != null ? previous : store;
+    }
+
+    private static File getDir(Context context) {
+        File dir = new File(context.getFilesDir(), "backgroundworker/batches");
+        if(!dir.exists() && !dir.mkdirs()) Log.w(TAG, "could not create " + dir);
+        return dir;
+    }
+
+    /**
+     * Loads every store left on disk, so the payloads enqueued by a previous process can be found
+     * before a flush work or an enqueue loads their store
+     */
+    static void loadAll(Context context) {
+        if(loaded) return;
+        synchronized (BatchStore.class) {
+            if(loaded) return;
+            File[] files = getDir(context).listFiles();
+            if(files != null) for (File file : files) {
+                String name = file.getName();
+                if(name.endsWith(".json")) get(context, name.substring(0, name.length() - ".json".length()));
+            }
+            loaded = true;
+        }
+    }
+
+    /**
+     * Looks for the store that holds some logical id, the stores on disk are loaded on the first lookup
+     * @param id the logical id returned by enqueue
+     * @return the store that holds the id or null if it is not a batched payload
+     */
+    @Nullable
+    static BatchStore find(Context context, String id) {
+        loadAll(context);
+        for (BatchStore store : stores.values()) if(store.contains(id)) return store;
+        return null;
+    }
+
+    /**
+     * Like find, but it never reads from disk, it only looks at the stores already loaded
+     * @param id the logical id returned by enqueue
+     * @return the store that holds the id or null if it is not a batched payload or the stores are not loaded yet
+     */
+    @Nullable
+    static BatchStore peek(String id) {
+        if(!loaded) return null;
+        for (BatchStore store : stores.values()) if(store.contains(id)) return store;
+        return null;
+    }
+
+    /**
+     * @return how many payloads are pending or running on every store that has some, keyed by worker name
+     */
+    static Map<String, Integer> depths(Context context) {
+        loadAll(context);
+        HashMap<String, Integer> depths = new HashMap<>();
+        for (Map.Entry<String, BatchStore> entry : stores.entrySet()) {
+            int depth = entry.getValue().depth();
+            if(depth > 0) depths.put(entry.getKey(), depth);
+        }
+        return depths;
+    }
+
+    static void watch(String id) { watched.add(id); }
+
+    static void unwatch(String id) { watched.remove(id); }
+
+    static boolean isWatched(String id) { return watched.contains(id); }
+
+    /**
+     * Adds payloads to the queue
+     * @param payloads payloads to be stored
+     * @return the logical ids, in the same order as the payloads
+     */
+    List<String> add(List<String> payloads) {
+        List<String> ids = new ArrayList<>(payloads.size());
+        synchronized (this) {
+            try {
+                for (String payload : payloads) {
+                    String id = UUID.randomUUID().toString();
+                    JSONObject item = new JSONObject();
+                    item.put("id", id);
+                    item.put("payload", payload);
+                    item.put("attemptCount", 0);
+                    pending.put(id, item);
+                    ids.add(id);
+                }
+            } catch (JSONException e) { Log.e(TAG, "could not store payload", e); }
+            version++;
+        }
+        persist();
+        return ids;
+    }
+
+    synchronized int pendingCount() { return pending.size(); }
+
+    private synchronized int depth() { return pending.size() + running.size(); }
+
+    /**
+     * Marks that a flush work is on its way so further enqueues don't schedule another one
+     * @return true if the caller is the one that should schedule the flush
+     */
+    boolean claimFlush() {
+        synchronized (this) {
+            if(flushScheduled) return false;
+            flushScheduled = true;
+            version++;
+        }
+        persist();
+        return true;
+    }
+
+    /**
+     * Moves up to maxBatchSize payloads to the running state, called when the flush work starts,
+     * payloads left running by a stopped attempt of the same flush go back to the queue first
+     * @param flush the id of the flush work
+     * @param maxBatchSize the maximum number of payloads handed to JS
+     * @return the payloads, as an array of { id, payload }
+     */
+    JSONArray drain(String flush, int maxBatchSize) {
+        JSONArray batch = new JSONArray();
+        synchronized (this) {
+            flushScheduled = false;
+            handBack(flush);
+            try {
+                Iterator<JSONObject> items = pending.values().iterator();
+                while (items.hasNext() && batch.length() < maxBatchSize) {
+                    JSONObject item = items.next();
+                    items.remove();
+                    item.put("attemptCount", item.optInt("attemptCount") + 1);
+                    item.put("flush", flush);
+                    running.put(item.getString("id"), item);
+                    JSONObject _item = new JSONObject();
+                    _item.put("id", item.getString("id"));
+                    _item.put("payload", item.opt("payload"));
+                    batch.put(_item);
+                }
+            } catch (JSONException e) { Log.e(TAG, "could not drain payloads", e); }
+            version++;
+        }
+        persist();
+        return batch;
+    }
+
+    /**
+     * Stores the result of one payload, payloads that should be retried go back to the queue, unless they ran
+     * out of attempts, then they fail like a regular work past its maxAttempts
+     * @param flush the id of the flush work that drained the payload
+     * @param id the payload's logical id
+     * @param value the value returned by the workflow
+     * @param result the payload's resolution, could be success, failure or retry
+     * @param maxAttempts how many attempts each payload can make, 0 for no limit
+     * @return the resolution the payload ended up with, null if the flush doesn't hold it
+     */
+    @Nullable
+    synchronized String complete(String flush, String id, @Nullable String value, String result, int maxAttempts) {
+        JSONObject item = running.get(id);
+        if(item == null || !flush.equals(item.optString("flush"))) return null;
+        running.remove(id);
+        item.remove("flush");
+        if(result.equals("retry") && !isOutOfAttempts(item, maxAttempts)) {
+            pending.put(id, item);
+            return result;
+        }
+        finish(item, result.equals("success") ? "succeeded" : "failed", value);
+        return result.equals("success") ? "success" : "failure";
+    }
+
+    private static boolean isOutOfAttempts(JSONObject item, int maxAttempts) {
+        return maxAttempts > 0 && item.optInt("attemptCount") >= maxAttempts;
+    }
+
+    private void finish(JSONObject item, String state, @Nullable String value) {
+        try {
+            item.remove("payload");
+            item.remove("flush");
+            item.put("state", state);
+            item.put("value", value);
+            item.put("finishedAt", System.currentTimeMillis());
+            finished.put(item.getString("id"), item);
+        } catch (JSONException e) { Log.e(TAG, "could not store result", e); }
+    }
+
+    /**
+     * Resolves every payload the flush left running with the same value, used when JS failed the whole batch
+     * @param flush the id of the flush work
+     * @param value the value returned by the workflow
+     * @param result the batch resolution, could be success or failure
+     * @return the ids of the payloads resolved
+     */
+    synchronized List<String> completeRemaining(String flush, @Nullable String value, String result) {
+        List<String> ids = drained(flush);
+        for (String id : ids) complete(flush, id, value, result, 0);
+        return ids;
+    }
+
+    /**
+     * Cancels a payload that is still waiting on the queue, running payloads can't be cancelled
+     * @param id the payload's logical id
+     */
+    void cancel(String id) {
+        synchronized (this) {
+            JSONObject item = pending.remove(id);
+            if(item == null) return;
+            finish(item, "cancelled", null);
+            version++;
+        }
+        persist();
+    }
+
+    /**
+     * Cancels every payload that is still waiting on the queue
+     */
+    void cancelAll() {
+        synchronized (this) {
+            if(pending.isEmpty()) return;
+            for (JSONObject item : pending.values()) finish(item, "cancelled", null);
+            pending.clear();
+            version++;
+        }
+        persist();
+    }
+
+    /**
+     * Hands the payloads of a flush back to the queue, used when the whole batch must be retried,
+     * payloads out of attempts fail with the batch value instead
+     * @param flush the id of the flush work
+     * @param value the value returned by the workflow
+     * @param maxAttempts how many attempts each payload can make, 0 for no limit
+     * @param blocked true if the batch was blocked by the foreground behaviour, its attempt doesn't count then
+     * @return the ids of the payloads that failed
+     */
+    List<String> requeue(String flush, @Nullable String value, int maxAttempts, boolean blocked) {
+        List<String> failed = new ArrayList<>();
+        synchronized (this) {
+            for (String id : drained(flush)) {
+                JSONObject item = running.get(id);
+                if(blocked) {
+                    try {
+                        item.put("attemptCount", item.optInt("attemptCount") - 1);
+                    } catch (JSONException e) { Log.e(TAG, "could not restore attempt count", e); }
+                }
+                else if(isOutOfAttempts(item, maxAttempts)) {
+                    running.remove(id);
+                    finish(item, "failed", value);
+                    failed.add(id);
+                }
+            }
+            handBack(flush);
+            flushScheduled = true;
+            version++;
+        }
+        persist();
+        return failed;
+    }
+
+    /**
+     * Moves the payloads the flush left running to the front of the queue
+     */
+    private void handBack(String flush) {
+        List<String> ids = drained(flush);
+        if(ids.isEmpty()) return;
+        LinkedHashMap<String, JSONObject> queue = new LinkedHashMap<>();
+        for (String id : ids) {
+            JSONObject item = running.remove(id);
+            item.remove("flush");
+            queue.put(id, item);
+        }
+        queue.putAll(pending);
+        pending.clear();
+        pending.putAll(queue);
+    }
+
+    private List<String> drained(String flush) {
+        List<String> ids = new ArrayList<>();
+        for (JSONObject item : running.values()) if(flush.equals(item.optString("flush"))) ids.add(item.optString("id"));
+        return ids;
+    }
+
+    /**
+     * Persists the results stored by complete, dropping results that are too old
+     */
+    void commit() {
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            Iterator<JSONObject> items = finished.values().iterator();
+            while (items.hasNext()) if(now - items.next().optLong("finishedAt") > RESULT_TTL) items.remove();
+            version++;
+        }
+        persist();
+    }
+
+    synchronized boolean contains(String id) {
+        return pending.containsKey(id) || running.containsKey(id) || finished.containsKey(id);
+    }
+
+    /**
+     * Builds the same info object Parser.getWorkInfo builds for a regular work
+     * @param id the payload's logical id
+     * @return the payload's info or null if it is not on this store
+     */
+    @Nullable
+    synchronized Bundle getInfo(String id) {
+        JSONObject item;
+        String state;
+        if((item = finished.get(id)) != null) state = item.optString("state");
+        else if((item = running.get(id)) != null) state = "running";
+        else if((item = pending.get(id)) != null) state = "enqueued";
+        else return null;
+        Bundle info = new Bundle();
+        info.putString("state", state);
+        info.putInt("attemptCount", item.optInt("attemptCount"));
+        info.putString("value", item.isNull("value") ? null : item.optString("value"));
+        return info;
+    }
+
+    private static JSONObject read(File file) {
+        if(!file.exists()) return new JSONObject();
+        try (FileInputStream in = new FileInputStream(file)) {
+            byte[] bytes = new byte[(int) file.length()];
+            int read = 0;
+            while (read < bytes.length) {
+                int count = in.read(bytes, read, bytes.length - read);
+                if(count < 0) break;
+                read += count;
+            }
+            return new JSONObject(new String(bytes, 0, read, UTF8));
+        } catch (IOException | JSONException e) {
+            Log.e(TAG, "could not read " + file, e);
+            return new JSONObject();
+        }
+    }
+
+    /**
+     * Mirrors the store to its file, the snapshot is taken under the store's monitor and written outside of it,
+     * a caller whose change was already written by someone else's snapshot returns without writing
+     */
+    private void persist() {
+        synchronized (fileLock) {
+            String snapshot;
+            long _version;
+            synchronized (this) {
+                if(version == persistedVersion) return;
+                _version = version;
+                try {
+                    JSONObject stored = new JSONObject();
+                    stored.put("pending", new JSONArray(pending.values()));
+                    stored.put("running", new JSONArray(running.values()));
+                    stored.put("finished", new JSONArray(finished.values()));
+                    stored.put("flushScheduled", flushScheduled);
+                    snapshot = stored.toString();
+                } catch (JSONException e) {
+                    Log.e(TAG, "could not write " + file, e);
+                    return;
+                }
+            }
+            File temp = new File(file.getPath() + ".tmp");
+            try (FileOutputStream out = new FileOutputStream(temp)) {
+                out.write(snapshot.getBytes(UTF8));
+                out.getFD().sync();
+            } catch (IOException e) {
+                Log.e(TAG, "could not write " + file, e);
+                return;
+            }
+            if(!temp.renameTo(file)) Log.e(TAG, "could not replace " + file);
+            persistedVersion = _version;
+        }
+    }
+
+}
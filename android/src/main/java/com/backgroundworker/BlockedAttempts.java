@@ -0,0 +1,53 @@
+package com.backgroundworker;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.Set;
+
+/**
+ * Counts, for each work, the attempts that never reached JS, the ones retried because the app was in foreground
+ * with the blocking behaviour and the ones stopped while they waited for a slot of their priority lane,
+ * WorkManager counts them as regular attempts but they shouldn't spend the worker's maxAttempts budget.
+ */
+class BlockedAttempts {
+
+    private static final String PREFERENCES = "com.backgroundworker.blocked";
+
+    private static volatile SharedPreferences preferences;
+
+    private static SharedPreferences get(Context context) {
+        SharedPreferences _preferences = preferences;
+        if(_preferences != null) return _preferences;
+        synchronized (BlockedAttempts.class) {
+            if(preferences == null) preferences = context.getApplicationContext().getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+            return preferences;
+        }
+    }
+
+    static synchronized void increment(Context context, String id) {
+        SharedPreferences _preferences = get(context);
+        _preferences.edit().putInt(id, _preferences.getInt(id, 0) + 1).apply();
+    }
+
+    static int count(Context context, String id) {
+        return get(context).getInt(id, 0);
+    }
+
+    static void clear(Context context, String id) {
+        SharedPreferences _preferences = get(context);
+        if(_preferences.contains(id)) _preferences.edit().remove(id).apply();
+    }
+
+    /**
+     * Drops the counts of works that no longer exist
+     * @param live the ids of the works that are not finished yet
+     */
+    static synchronized void sweep(Context context, Set<String> live) {
+        SharedPreferences _preferences = get(context);
+        SharedPreferences.Editor editor = _preferences.edit();
+        for (String id : _preferences.getAll().keySet()) if(!live.contains(id)) editor.remove(id);
+        editor.apply();
+    }
+
+}
@@ -0,0 +1,111 @@
+package com.backgroundworker;
+
+import android.os.Bundle;
+
+import androidx.annotation.NonNull;
+import androidx.work.Data;
+import androidx.work.InputMerger;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+/**
+ * Merges the outputs of a chained step's parents into its payload.
+ * Every step of a chain outputs its work's id under "result:" followed by its key and, if it is short enough for
+ * the 10KB output Data, its value under "value:" followed by its key. The first input is the step's own input data
+ * and the others are its parents' outputs, or the output of the work WorkContinuation.combine adds.
+ * A step with a single parent receives the parent's value as is, a step with many parents receives an object
+ * keyed by the parents' keys, and a step that was enqueued with its own payload, or that has no parents, keeps it.
+ * Values that don't fit in the input Data are left on the ResultStore, the step only receives the ids of its
+ * parents' works under "payloadResults" and reads their values back with resolve when it runs.
+ * WorkManager instantiates the merger by its class name, so it must stay public with an empty constructor.
+ */
+public class ChainInputMerger extends InputMerger {
+
+    static final String VALUE_PREFIX = "value:";
+    static final String RESULT_PREFIX = "result:";
+
+    @NonNull
+    @Override
+    public Data merge(@NonNull List<Data> inputs) {
+
+        Map<String, Object> input = inputs.isEmpty() ? new HashMap<>() : new HashMap<>(inputs.get(0).getKeyValueMap());
+        Object parents = input.get("parents");
+        if(input.get("payload")!=null || input.get("payloadRef")!=null || !(parents instanceof Integer) || (Integer) parents == 0)
+            return new Data.Builder().putAll(input).build();
+
+        // ArrayCreatingInputMerger, used by combine, turns repeated keys into arrays, the last value wins
+        LinkedHashMap<String, String> values = new LinkedHashMap<>();
+        LinkedHashMap<String, String> results = new LinkedHashMap<>();
+        for (int i = 1; i < inputs.size(); i++) {
+            for (Map.Entry<String, Object> entry : inputs.get(i).getKeyValueMap().entrySet()) {
+                Object value = entry.getValue();
+                if(value instanceof String[] && ((String[]) value).length>0) value = ((String[]) value)[((String[]) value).length - 1];
+                if(!(value instanceof String)) continue;
+                if(entry.getKey().startsWith(VALUE_PREFIX)) values.put(entry.getKey().substring(VALUE_PREFIX.length()), (String) value);
+                else if(entry.getKey().startsWith(RESULT_PREFIX)) results.put(entry.getKey().substring(RESULT_PREFIX.length()), (String) value);
+            }
+        }
+
+        if((Integer) parents == 1) {
+            if(!values.isEmpty()) input.put("payload", values.values().iterator().next());
+            else if(!results.isEmpty()) input.put("payloadResults", new JSONObject(results).toString());
+            return new Data.Builder().putAll(input).build();
+        }
+
+        // parents without an inline value either returned nothing or left their value on the ResultStore
+        String payload = values.keySet().containsAll(results.keySet()) ? toObject(values) : null;
+        if(payload!=null && payload.length()<=PayloadStore.INLINE_LIMIT) input.put("payload", payload);
+        else input.put("payloadResults", new JSONObject(results).toString());
+
+        return new Data.Builder().putAll(input).build();
+
+    }
+
+    /**
+     * Reads back the values a step's parents left on the ResultStore
+     * @param store the store the parents' results were written to
+     * @param payloadResults the parents' keys and work ids, as set by merge
+     * @param single if the step has a single parent, whose value is the payload as is
+     * @return the step's payload
+     * @throws IOException if the result of a parent is no longer stored
+     */
+    @Nullable
+    static String resolve(ResultStore store, String payloadResults, boolean single) throws IOException, JSONException {
+        JSONObject results = new JSONObject(payloadResults);
+        LinkedHashMap<String, String> values = new LinkedHashMap<>();
+        Iterator<String> keys = results.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            String id = results.getString(key);
+            Bundle info = store.getInfo(id);
+            if(info==null) throw new IOException("result of " + id + " is gone");
+            String value = info.getString("value");
+            if(single) return value;
+            if(value!=null) values.put(key, value);
+        }
+        return single ? null : toObject(values);
+    }
+
+    /**
+     * Values are already JSON, so the object is assembled without parsing them
+     */
+    private static String toObject(Map<String, String> values) {
+        StringBuilder payload = new StringBuilder("{");
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            if(payload.length()>1) payload.append(',');
+            payload.append(JSONObject.quote(entry.getKey())).append(':').append(entry.getValue());
+        }
+        return payload.append('}').toString();
+    }
+
+}
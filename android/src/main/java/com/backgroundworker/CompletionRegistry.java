@@ -0,0 +1,95 @@
+package com.backgroundworker;
+
+import androidx.work.ListenableWorker.Result;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.Nullable;
+
+import io.reactivex.SingleEmitter;
+
+/**
+ * Keeps the emitter of every work waiting for JS, so the result sent from JS resolves the work
+ * straight from the thread that received it.
+ * Entries belong to one attempt of the work, a late result of an earlier attempt, like one that came after its
+ * timeout, finds no entry instead of resolving the attempt that runs now.
+ * Entries are removed once the work is completed, disposed or cancelled.
+ */
+class CompletionRegistry {
+
+    /**
+     * Turns the resolution sent by JS into the work's result
+     */
+    interface Resolver {
+        Result resolve(@Nullable String value, String result);
+    }
+
+    private static class Entry {
+        final int attempt;
+        final SingleEmitter<Result> emitter;
+        final Resolver resolver;
+        Entry(int attempt, SingleEmitter<Result> emitter, Resolver resolver) {
+            this.attempt = attempt;
+            this.emitter = emitter;
+            this.resolver = resolver;
+        }
+    }
+
+    private static final ConcurrentHashMap<String, Entry> pending = new ConcurrentHashMap<>();
+
+    /**
+     * Registers a work waiting for JS, the entry goes away by itself if the Single is disposed
+     * @param id the work's id
+     * @param attempt the attempt waiting for JS, the work's run attempt count
+     * @param emitter the emitter of the work's Single
+     * @param resolver how the resolution sent by JS becomes the work's result
+     */
+    static void register(String id, int attempt, SingleEmitter<Result> emitter, Resolver resolver) {
+        register(id, attempt, emitter, resolver, null);
+    }
+
+    /**
+     * Same as register, with a callback that runs once the Single is either resolved or disposed
+     * @param onDone called exactly once, when the work is no longer waiting for JS
+     */
+    static void register(String id, int attempt, SingleEmitter<Result> emitter, Resolver resolver, @Nullable Runnable onDone) {
+        final Entry entry = new Entry(attempt, emitter, resolver);
+        pending.put(id, entry);
+        emitter.setCancellable(() -> {
+            pending.remove(id, entry);
+            if(onDone != null) onDone.run();
+        });
+    }
+
+    /**
+     * Resolves a work with the resolution sent by JS, if the resolver throws the work fails instead
+     * @param id the work's id
+     * @param attempt the attempt the resolution belongs to
+     * @param value the value returned by the task
+     * @param result task's resolution, could be success, failure or retry
+     * @return false if no attempt of the work was waiting for this resolution
+     */
+    static boolean complete(String id, int attempt, @Nullable String value, String result) {
+        Entry entry = pending.get(id);
+        if(entry == null || entry.attempt != attempt || !pending.remove(id, entry)) return false;
+        Result resolved;
+        try {
+            resolved = entry.resolver.resolve(value, result);
+        } catch (RuntimeException e) {
+            // the entry is gone already, failing the work is the only way it doesn't wait for JS forever
+            entry.emitter.tryOnError(e);
+            return true;
+        }
+        entry.emitter.onSuccess(resolved);
+        return true;
+    }
+
+    static void remove(String id) {
+        pending.remove(id);
+    }
+
+    static int size() {
+        return pending.size();
+    }
+
+}
@@ -0,0 +1,239 @@
+package com.backgroundworker;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+/**
+ * Persisted index of the payloads of unique works whose worker deduplicates them.
+ * While a unique work is still enqueued its key points to it, and payloads enqueued with the same key are merged
+ * into the stored one instead of creating another work, the work only reads its payload from here when it starts,
+ * which is when the key is released so the next payload creates a new work.
+ * Payloads are kept by work id until the work reaches a terminal state, so retries read the same payload.
+ * The payloads themselves live on the PayloadStore, the index only keeps their handles, so merging a payload
+ * appends it to the store instead of rewriting it on the preferences.
+ */
+class DedupIndex {
+
+    private static final String TAG = "DedupIndex";
+    private static final String PREFERENCES = "com.backgroundworker.dedup";
+    private static final String KEY_PREFIX = "key:";
+    private static final String WORK_PREFIX = "work:";
+    private static final long SWEEP_GRACE = 60 * 1000;
+
+    private static volatile DedupIndex instance;
+
+    private final SharedPreferences preferences;
+    private final PayloadStore payloads;
+
+    static DedupIndex get(Context context) {
+        DedupIndex _instance = instance;
+        if(_instance != null) return _instance;
+        synchronized (DedupIndex.class) {
+            if(instance == null) instance = new DedupIndex(context.getApplicationContext().getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE), PayloadStore.get(context));
+            return instance;
+        }
+    }
+
+    private DedupIndex(SharedPreferences preferences, PayloadStore payloads) {
+        this.preferences = preferences;
+        this.payloads = payloads;
+    }
+
+    /**
+     * Merges a payload into the one of the work still enqueued for the key
+     * @param key the unique work's name
+     * @param payload the payload being enqueued
+     * @param strategy how payloads are merged, could be last, merge or concat
+     * @return the id of the work that received the payload or null if no work is waiting for this key
+     */
+    @Nullable
+    synchronized String merge(String key, @Nullable String payload, String strategy) throws IOException {
+        String id = preferences.getString(KEY_PREFIX + key, null);
+        if(id == null) return null;
+        JSONObject work = read(id);
+        if(work == null) return null;
+        String previous = work.optString("handle", null);
+        try {
+            work.put("handle", store(mergePayloads(readPayload(work), payload, strategy)));
+            work.remove("payload");
+            preferences.edit().putString(WORK_PREFIX + id, work.toString()).commit();
+        } catch (JSONException e) {
+            Log.e(TAG, "could not merge payload of " + key, e);
+            return null;
+        }
+        if(previous != null) payloads.release(previous);
+        return id;
+    }
+
+    /**
+     * Stores the payload of a new work and points the key to it
+     * @param key the unique work's name
+     * @param id the work's id
+     * @param payload the work's payload
+     */
+    synchronized void put(String key, String id, @Nullable String payload) throws IOException {
+        JSONObject work = new JSONObject();
+        try {
+            work.put("key", key);
+            work.put("handle", store(payload));
+            work.put("storedAt", System.currentTimeMillis());
+        } catch (JSONException e) { Log.e(TAG, "could not store payload of " + key, e); }
+        preferences.edit()
+                .putString(WORK_PREFIX + id, work.toString())
+                .putString(KEY_PREFIX + key, id)
+                .commit();
+    }
+
+    /**
+     * Called when the work starts, from now on payloads enqueued with its key go to a new work
+     * @param id the work's id
+     * @return the work's payload
+     * @throws IOException if the payload could not be read from the PayloadStore
+     */
+    @Nullable
+    synchronized String claim(String id) throws IOException {
+        JSONObject work = read(id);
+        if(work == null) return null;
+        String key = KEY_PREFIX + work.optString("key");
+        if(id.equals(preferences.getString(key, null))) preferences.edit().remove(key).commit();
+        return readPayload(work);
+    }
+
+    /**
+     * Drops a work that reached a terminal state or was cancelled
+     * @param id the work's id
+     */
+    synchronized void forget(String id) {
+        JSONObject work = read(id);
+        if(work == null) return;
+        SharedPreferences.Editor editor = preferences.edit().remove(WORK_PREFIX + id);
+        String key = KEY_PREFIX + work.optString("key");
+        if(id.equals(preferences.getString(key, null))) editor.remove(key);
+        editor.commit();
+        String handle = work.optString("handle", null);
+        if(handle != null) payloads.release(handle);
+    }
+
+    /**
+     * Drops every work of a worker
+     * @param name the worker's name, which prefixes the keys of its unique works
+     */
+    synchronized void forgetAll(String name) {
+        for (Map.Entry<String, ?> entry : preferences.getAll().entrySet()) {
+            if(!entry.getKey().startsWith(KEY_PREFIX + name + ":")) continue;
+            forget((String) entry.getValue());
+            preferences.edit().remove(entry.getKey()).commit();
+        }
+    }
+
+    /**
+     * Drops the works that no longer exist, like the ones replaced or pruned by WorkManager
+     * @param live the ids of the works that are not finished yet
+     */
+    synchronized void sweep(Set<String> live) {
+        long now = System.currentTimeMillis();
+        for (String entry : preferences.getAll().keySet()) {
+            if(!entry.startsWith(WORK_PREFIX)) continue;
+            String id = entry.substring(WORK_PREFIX.length());
+            JSONObject work = read(id);
+            if(work != null && (live.contains(id) || now - work.optLong("storedAt") < SWEEP_GRACE)) continue;
+            forget(id);
+            preferences.edit().remove(entry).commit();
+        }
+    }
+
+    /**
+     * @return the handles of every payload the index still keeps, so sweeping the PayloadStore leaves them alone
+     */
+    synchronized Set<String> handles() {
+        Set<String> handles = new HashSet<>();
+        for (Map.Entry<String, ?> entry : preferences.getAll().entrySet()) {
+            if(!entry.getKey().startsWith(WORK_PREFIX)) continue;
+            JSONObject work = read(entry.getKey().substring(WORK_PREFIX.length()));
+            String handle = work != null ? work.optString("handle", null) : null;
+            if(handle != null) handles.add(handle);
+        }
+        return handles;
+    }
+
+    /**
+     * Appends a payload to the PayloadStore and makes it durable before the index points to it
+     * @return the payload's handle or null if there's no payload
+     */
+    @Nullable
+    private String store(@Nullable String payload) throws IOException {
+        if(payload == null) return null;
+        String handle = payloads.put(payload);
+        payloads.flush();
+        return handle;
+    }
+
+    /**
+     * Works stored before the payloads moved to the PayloadStore still carry theirs inline
+     */
+    @Nullable
+    private String readPayload(JSONObject work) throws IOException {
+        String handle = work.optString("handle", null);
+        if(handle != null) {
+            String payload = payloads.read(handle);
+            if(payload == null) throw new IOException("payload is gone " + handle);
+            return payload;
+        }
+        return work.isNull("payload") ? null : work.optString("payload", null);
+    }
+
+    @Nullable
+    private JSONObject read(String id) {
+        String stored = preferences.getString(WORK_PREFIX + id, null);
+        if(stored == null) return null;
+        try {
+            return new JSONObject(stored);
+        } catch (JSONException e) {
+            Log.e(TAG, "could not read work " + id, e);
+            return null;
+        }
+    }
+
+    /**
+     * Payloads are JSON, merge assigns the keys of the new object over the stored one and concat appends
+     * the new items to the stored array, anything that doesn't fit the strategy keeps the new payload
+     */
+    @Nullable
+    private static String mergePayloads(@Nullable String stored, @Nullable String payload, String strategy) {
+        if(stored == null || payload == null) return payload;
+        try {
+            Object previous = new JSONTokener(stored).nextValue();
+            Object next = new JSONTokener(payload).nextValue();
+            if(strategy.equals("merge") && previous instanceof JSONObject && next instanceof JSONObject) {
+                Iterator<String> keys = ((JSONObject) next).keys();
+                while (keys.hasNext()) {
+                    String key = keys.next();
+                    ((JSONObject) previous).put(key, ((JSONObject) next).get(key));
+                }
+                return previous.toString();
+            }
+            if(strategy.equals("concat")) {
+                JSONArray merged = previous instanceof JSONArray ? (JSONArray) previous : new JSONArray().put(previous);
+                if(next instanceof JSONArray) for (int i = 0; i < ((JSONArray) next).length(); i++) merged.put(((JSONArray) next).get(i));
+                else merged.put(next);
+                return merged.toString();
+            }
+        } catch (JSONException e) { Log.w(TAG, "could not merge payloads, keeping the last one", e); }
+        return payload;
+    }
+
+}
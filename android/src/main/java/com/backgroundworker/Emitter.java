@@ -0,0 +1,62 @@
+package com.backgroundworker;
+
+import android.os.Bundle;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.ReactApplicationContext;
+import com.facebook.react.modules.core.DeviceEventManagerModule;
+
+import javax.annotation.Nullable;
+
+/**
+ * Every event sent from native to JS goes through here.
+ * Events are handed to the running react context, or to a replacement target, so the native paths can be
+ * driven and measured without react, like the instrumented benchmarks do with a fake target.
+ */
+class Emitter {
+
+    /**
+     * Receives the events instead of the react context
+     */
+    interface Target {
+        void emit(String event, Bundle data);
+    }
+
+    @Nullable private static volatile Target target;
+
+    /**
+     * Replaces the react context as the receiver of every event
+     * @param _target the new receiver, or null to send events to react again
+     */
+    static void setTarget(@Nullable Target _target) {
+        target = _target;
+    }
+
+    /**
+     * @return true if there's someone on the other side to receive events
+     */
+    static boolean isAvailable() {
+        if(target!=null) return true;
+        ReactApplicationContext context = BackgroundWorkerModule.context;
+        return context!=null && context.hasActiveCatalystInstance();
+    }
+
+    /**
+     * Sends an event to JS
+     * @param event the event name
+     * @param data the event data
+     * @return false if the event could not be sent because react is not running
+     */
+    static boolean emit(String event, Bundle data) {
+        Target _target = target;
+        if(_target!=null) {
+            _target.emit(event, data);
+            return true;
+        }
+        ReactApplicationContext context = BackgroundWorkerModule.context;
+        if(context==null || !context.hasActiveCatalystInstance()) return false;
+        context.getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class).emit(event, Arguments.fromBundle(data));
+        return true;
+    }
+
+}
@@ -0,0 +1,267 @@
+package com.backgroundworker;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.work.Data;
+import androidx.work.Worker;
+import androidx.work.WorkerParameters;
+
+import com.facebook.react.modules.network.OkHttpClientProvider;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import okhttp3.Call;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okio.BufferedSink;
+import okio.Okio;
+import okio.Source;
+
+/**
+ * Runs the works of native workers, which send their payload with a declarative HTTP request and never wake JS up.
+ * The request is described by the worker's url, method, headers and contentType, the payload is the request's body,
+ * streamed from the PayloadStore or from its file, and the response's status and body are the work's value.
+ * Responses with a status listed on the worker's retryOn, and network errors, are retried within the maxAttempts budget,
+ * any other response that is not 2xx fails the work, and so does a payload that is gone, since no retry brings it back.
+ * Requests go through react native's OkHttp client, so they share its connection pool.
+ */
+public class HttpWorker extends Worker {
+
+    private static final String TAG = "HttpWorker";
+    private static final int MAX_RESPONSE_SIZE = 1024 * 1024;
+
+    /**
+     * Statuses retried when the worker doesn't set retryOn
+     */
+    static final String DEFAULT_RETRY_ON = "408,429,500,502,503,504";
+
+    private final WorkerRegistry registry;
+    private final PayloadStore payloads;
+    private final ResultStore results;
+    private final DedupIndex dedup;
+    @Nullable private final OkHttpClient httpClient;
+    private volatile Call call;
+
+    public HttpWorker(@NonNull Context appContext, @NonNull WorkerParameters workerParams) {
+        this(appContext, workerParams, WorkerDependencies.get(appContext));
+    }
+
+    /**
+     * Used by the library's WorkerFactory, which hands every worker the same dependencies and the client set on the options
+     */
+    HttpWorker(@NonNull Context appContext, @NonNull WorkerParameters workerParams, WorkerDependencies dependencies) {
+        super(appContext, workerParams);
+        this.registry = dependencies.registry;
+        this.payloads = dependencies.payloads;
+        this.results = dependencies.results;
+        this.dedup = dependencies.dedup;
+        this.httpClient = dependencies.httpClient;
+    }
+
+    @NonNull
+    @Override
+    public Result doWork() {
+
+        String id = getId().toString();
+        Map<String, Object> worker = BackgroundWorker.getWorker(registry, getInputData());
+
+        String name = (String) worker.get("name");
+        String url = (String) worker.get("url");
+        String payload = (String) worker.get("payload");
+        String payloadRef = (String) worker.get("payloadRef");
+
+        if(name==null || url==null)
+            return Result.failure();
+
+        boolean deduplicated = Boolean.TRUE.equals(worker.get("deduplicated"));
+        if(deduplicated) {
+            try {
+                payload = dedup.claim(id);
+            } catch (IOException e) {
+                Log.e(TAG, "could not read deduplicated payload of " + id, e);
+                Metrics.resolved(name, "failure", false, 1);
+                return Result.failure();
+            }
+        }
+
+        Object payloadResults = worker.get("payloadResults");
+        if(payloadResults instanceof String) {
+            try {
+                payload = ChainInputMerger.resolve(results, (String) payloadResults, Integer.valueOf(1).equals(worker.get("parents")));
+            } catch (IOException | JSONException e) {
+                Log.e(TAG, "could not read the results of the parents of " + id, e);
+                Metrics.resolved(name, "failure", false, 1);
+                return Result.failure();
+            }
+        }
+
+        Object enqueuedAt = worker.get("enqueuedAt");
+        Metrics.started(name, enqueuedAt instanceof Long ? (Long) enqueuedAt : 0);
+        long startedAt = System.currentTimeMillis();
+
+        String result;
+        String value;
+        try {
+            Object timeout = worker.get("timeout");
+            OkHttpClient client = (httpClient!=null ? httpClient : OkHttpClientProvider.getOkHttpClient()).newBuilder()
+                    .callTimeout(timeout instanceof Number ? ((Number) timeout).longValue() : 10, TimeUnit.MINUTES)
+                    .build();
+            call = client.newCall(buildRequest(worker, url, payload, payloadRef));
+            if(isStopped()) call.cancel();
+            try (Response response = call.execute()) {
+                value = new JSONObject()
+                        .put("status", response.code())
+                        .put("body", response.peekBody(MAX_RESPONSE_SIZE).string())
+                        .toString();
+                if(response.isSuccessful()) result = "success";
+                else result = getRetryOn(worker).contains(response.code()) ? "retry" : "failure";
+            }
+        } catch (FileNotFoundException e) {
+            Log.e(TAG, "payload of " + id + " is gone", e);
+            value = JSONObject.quote(String.valueOf(e.getMessage()));
+            result = "failure";
+        } catch (IOException e) {
+            // network errors and timeouts are retried, the result of a stopped work is ignored anyway
+            Log.w(TAG, "request of " + id + " failed", e);
+            value = JSONObject.quote(String.valueOf(e.getMessage()));
+            result = "retry";
+        } catch (IllegalArgumentException | JSONException e) {
+            Log.e(TAG, "invalid request of " + id, e);
+            value = JSONObject.quote(String.valueOf(e.getMessage()));
+            result = "failure";
+        }
+
+        Metrics.ran(name, startedAt);
+
+        Object maxAttempts = worker.get("maxAttempts");
+        boolean outOfAttempts = maxAttempts instanceof Number && getRunAttemptCount() + 1 >= ((Number) maxAttempts).intValue();
+        if(result.equals("retry") && !outOfAttempts) {
+            Metrics.resolved(name, result, false, 1);
+            return Result.retry();
+        }
+        // a retry past the maxAttempts budget fails the work, and is counted as such
+        Metrics.resolved(name, result.equals("success") ? "success" : "failure", false, 1);
+
+        if(payloadRef!=null) payloads.release(payloadRef);
+        if(deduplicated) dedup.forget(id);
+
+        results.put(id, name, result.equals("success") ? "succeeded" : "failed", value, null, getRunAttemptCount() + 1);
+        if(Boolean.TRUE.equals(worker.get("notify"))) {
+            Bundle info = results.getInfo(id);
+            if(info!=null) ResultNotifier.offer(name, id, info);
+        }
+
+        Data.Builder output = new Data.Builder();
+        if(value.length()<=ResultStore.INLINE_LIMIT) output.putString("value", value);
+        Object step = worker.get("step");
+        if(step instanceof String) {
+            if(value.length()<=ResultStore.INLINE_LIMIT) output.putString(ChainInputMerger.VALUE_PREFIX + step, value);
+            output.putString(ChainInputMerger.RESULT_PREFIX + step, id);
+        }
+        return result.equals("success") ? Result.success(output.build()) : Result.failure(output.build());
+
+    }
+
+    /**
+     * The work was cancelled or stopped by the system, the request is cancelled with it
+     */
+    @Override
+    public void onStopped() {
+        super.onStopped();
+        Call _call = call;
+        if(_call!=null) _call.cancel();
+    }
+
+    private Request buildRequest(Map<String, Object> worker, String url, @Nullable String payload, @Nullable String payloadRef) throws IOException, JSONException {
+
+        String method = worker.get("method") instanceof String ? ((String) worker.get("method")).toUpperCase() : "POST";
+        Request.Builder builder = new Request.Builder().url(url);
+
+        // headers travel as a JSON object, the registry only keeps flat definitions
+        Object headers = worker.get("headers");
+        if(headers instanceof String) {
+            JSONObject _headers = new JSONObject((String) headers);
+            Iterator<String> keys = _headers.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                builder.header(key, _headers.getString(key));
+            }
+        }
+
+        if(method.equals("GET") || method.equals("HEAD"))
+            return builder.method(method, null).build();
+
+        Object contentType = worker.get("contentType");
+        MediaType mediaType = MediaType.parse(contentType instanceof String ? (String) contentType : "application/json; charset=utf-8");
+
+        RequestBody body;
+        if(payloadRef!=null) {
+            PayloadStore.Slice slice = payloads.locate(payloadRef);
+            if(slice==null) throw new FileNotFoundException("payload is gone " + payloadRef);
+            body = stream(mediaType, slice);
+        }
+        else if(payload!=null && "file".equals(worker.get("payloadType"))) body = RequestBody.create(mediaType, new File(payload));
+        else body = RequestBody.create(mediaType, payload!=null ? payload : "");
+
+        return builder.method(method, body).build();
+
+    }
+
+    /**
+     * Streams a stored payload straight from its segment, it is never read in memory
+     */
+    private static RequestBody stream(@Nullable MediaType mediaType, PayloadStore.Slice slice) {
+        return new RequestBody() {
+            @Nullable
+            @Override
+            public MediaType contentType() {
+                return mediaType;
+            }
+
+            @Override
+            public long contentLength() {
+                return slice.length;
+            }
+
+            @Override
+            public void writeTo(@NonNull BufferedSink sink) throws IOException {
+                try (FileInputStream in = new FileInputStream(slice.file)) {
+                    in.getChannel().position(slice.offset);
+                    Source source = Okio.source(in);
+                    sink.write(source, slice.length);
+                }
+            }
+        };
+    }
+
+    private static Set<Integer> getRetryOn(Map<String, Object> worker) {
+        Object retryOn = worker.get("retryOn");
+        Set<Integer> statuses = new HashSet<>();
+        for (String status : (retryOn instanceof String ? (String) retryOn : DEFAULT_RETRY_ON).split(",")) {
+            try {
+                if(!status.trim().isEmpty()) statuses.add(Integer.parseInt(status.trim()));
+            } catch (NumberFormatException e) { Log.w(TAG, "invalid retryOn status " + status); }
+        }
+        return statuses;
+    }
+
+}
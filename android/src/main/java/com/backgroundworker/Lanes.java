@@ -0,0 +1,112 @@
+package com.backgroundworker;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+/**
+ * Priority lanes for queued works, each lane lets a limited number of works reach JS at the same time and
+ * the works over the limit wait here, without holding any thread, until a slot of their lane frees up.
+ * The high lane has no limit, so user initiated works never wait behind a backlog of lower priority ones.
+ * Works wait once WorkManager already started them, so a waiting work keeps its scheduler slot, but it holds no
+ * thread and, if it is stopped before getting a slot, the attempt doesn't count against its maxAttempts, see BlockedAttempts.
+ * Limits only bind the current process.
+ */
+class Lanes {
+
+    static final String HIGH = "high";
+    static final String NORMAL = "normal";
+    static final String LOW = "low";
+
+    private static final HashMap<String, Integer> limits = new HashMap<>();
+    private static final HashMap<String, Integer> running = new HashMap<>();
+    private static final HashMap<String, ArrayDeque<Runnable>> waiting = new HashMap<>();
+
+    static {
+        limits.put(HIGH, Integer.MAX_VALUE);
+        limits.put(NORMAL, Integer.MAX_VALUE);
+        limits.put(LOW, 1);
+    }
+
+    /**
+     * @param priority the priority of the work, from the enqueue or from the worker
+     * @return the lane, normal if the priority is unknown
+     */
+    static String of(@Nullable Object priority) {
+        return HIGH.equals(priority) || LOW.equals(priority) ? (String) priority : NORMAL;
+    }
+
+    static boolean isLane(@Nullable String lane) {
+        return HIGH.equals(lane) || NORMAL.equals(lane) || LOW.equals(lane);
+    }
+
+    /**
+     * Runs the work right away if its lane has a free slot, otherwise it waits for one
+     * @param lane the work's lane
+     * @param start hands the work to JS, it also identifies the work when calling done
+     */
+    static void acquire(String lane, Runnable start) {
+        synchronized (Lanes.class) {
+            int _running = running(lane);
+            if(_running >= limits.get(lane)) {
+                ArrayDeque<Runnable> queue = waiting.get(lane);
+                if(queue == null) waiting.put(lane, queue = new ArrayDeque<>());
+                queue.add(start);
+                return;
+            }
+            running.put(lane, _running + 1);
+        }
+        start.run();
+    }
+
+    /**
+     * Frees the work's slot, or takes it out of the queue if it never got one, called once the work is
+     * finished, stopped or cancelled
+     * @param lane the work's lane
+     * @param start the runnable given to acquire
+     */
+    static void done(String lane, Runnable start) {
+        List<Runnable> next;
+        synchronized (Lanes.class) {
+            ArrayDeque<Runnable> queue = waiting.get(lane);
+            if(queue != null && queue.remove(start)) return;
+            running.put(lane, Math.max(0, running(lane) - 1));
+            next = poll(lane);
+        }
+        for (Runnable runnable : next) runnable.run();
+    }
+
+    /**
+     * @param lane the lane to be limited
+     * @param limit how many works of the lane can run at the same time
+     */
+    static void setLimit(String lane, int limit) {
+        List<Runnable> next;
+        synchronized (Lanes.class) {
+            limits.put(lane, Math.max(1, limit));
+            next = poll(lane);
+        }
+        for (Runnable runnable : next) runnable.run();
+    }
+
+    private static List<Runnable> poll(String lane) {
+        List<Runnable> next = new ArrayList<>();
+        ArrayDeque<Runnable> queue = waiting.get(lane);
+        int _running = running(lane);
+        while (queue != null && !queue.isEmpty() && _running < limits.get(lane)) {
+            next.add(queue.poll());
+            _running++;
+        }
+        running.put(lane, _running);
+        return next;
+    }
+
+    private static int running(String lane) {
+        Integer count = running.get(lane);
+        return count == null ? 0 : count;
+    }
+
+}
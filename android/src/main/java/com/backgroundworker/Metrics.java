@@ -0,0 +1,205 @@
+package com.backgroundworker;
+
+import android.os.Bundle;
+
+import androidx.work.WorkInfo;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free counters and histograms for every worker, cheap enough to stay on in release builds.
+ * They are recorded when payloads are enqueued, when the work starts, when it is emitted to JS and when
+ * JS sends its result, and they only describe what happened in the current process.
+ * Queue depths are the exception, they are counted from WorkManager and the batch stores when the metrics are read,
+ * so works that leave the queue without a result, like cancelled ones, are never left behind.
+ */
+class Metrics {
+
+    /**
+     * Histogram of durations in milliseconds, with power of two buckets
+     */
+    static class Histogram {
+
+        private static final int BUCKETS = 40;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long value) {
+            if(value < 0) return;
+            buckets.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value)));
+            count.incrementAndGet();
+            sum.addAndGet(value);
+            long _max;
+            while (value > (_max = max.get()) && !max.compareAndSet(_max, value)) { }
+        }
+
+        /**
+         * @param quantile between 0 and 1
+         * @return the upper bound of the bucket where the quantile falls
+         */
+        private long quantile(double quantile) {
+            long _count = count.get();
+            if(_count == 0) return 0;
+            long target = (long) Math.ceil(_count * quantile);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets.get(i);
+                if(seen >= target) return Math.min(i == 0 ? 0 : 1L << i, max.get());
+            }
+            return max.get();
+        }
+
+        Bundle toBundle() {
+            Bundle histogram = new Bundle();
+            long _count = count.get();
+            histogram.putDouble("count", _count);
+            histogram.putDouble("mean", _count == 0 ? 0 : (double) sum.get() / _count);
+            histogram.putDouble("max", max.get());
+            histogram.putDouble("p50", quantile(0.5));
+            histogram.putDouble("p90", quantile(0.9));
+            histogram.putDouble("p99", quantile(0.99));
+            return histogram;
+        }
+
+    }
+
+    static class WorkerMetrics {
+
+        final AtomicLong enqueued = new AtomicLong();
+        final AtomicLong started = new AtomicLong();
+        final AtomicLong emitted = new AtomicLong();
+        final AtomicLong succeeded = new AtomicLong();
+        final AtomicLong failed = new AtomicLong();
+        final AtomicLong retried = new AtomicLong();
+        final AtomicLong blockedRetries = new AtomicLong();
+        final Histogram waitTime = new Histogram();
+        final Histogram runTime = new Histogram();
+
+        Bundle toBundle(long queueDepth) {
+            Bundle metrics = new Bundle();
+            metrics.putDouble("enqueued", enqueued.get());
+            metrics.putDouble("started", started.get());
+            metrics.putDouble("emitted", emitted.get());
+            metrics.putDouble("succeeded", succeeded.get());
+            metrics.putDouble("failed", failed.get());
+            metrics.putDouble("retried", retried.get());
+            metrics.putDouble("blockedRetries", blockedRetries.get());
+            metrics.putDouble("queueDepth", queueDepth);
+            metrics.putBundle("waitTime", waitTime.toBundle());
+            metrics.putBundle("runTime", runTime.toBundle());
+            return metrics;
+        }
+
+    }
+
+    private static final ConcurrentHashMap<String, WorkerMetrics> workers = new ConcurrentHashMap<>();
+
+    static WorkerMetrics get(String name) {
+        WorkerMetrics metrics = workers.get(name);
+        if(metrics != null) return metrics;
+        metrics = new WorkerMetrics();
+        WorkerMetrics previous = workers.putIfAbsent(name, metrics);
+        return previous != null ? previous : metrics;
+    }
+
+    static void enqueued(String name, int count) {
+        get(name).enqueued.addAndGet(count);
+    }
+
+    /**
+     * @param name the worker's name
+     * @param enqueuedAt when the payload was enqueued, or 0 if unknown
+     */
+    static void started(String name, long enqueuedAt) {
+        WorkerMetrics metrics = get(name);
+        metrics.started.incrementAndGet();
+        if(enqueuedAt > 0) metrics.waitTime.record(System.currentTimeMillis() - enqueuedAt);
+    }
+
+    static void emitted(String name) {
+        get(name).emitted.incrementAndGet();
+    }
+
+    /**
+     * @param name the worker's name
+     * @param emittedAt when the work was handed to JS
+     */
+    static void ran(String name, long emittedAt) {
+        get(name).runTime.record(System.currentTimeMillis() - emittedAt);
+    }
+
+    /**
+     * @param name the worker's name
+     * @param result the resolution sent by JS, could be success, failure or retry
+     * @param blocked if the retry was caused by the blocking foreground behaviour
+     * @param count how many payloads got this resolution, more than one for a batch
+     */
+    static void resolved(String name, String result, boolean blocked, int count) {
+        WorkerMetrics metrics = get(name);
+        switch (result) {
+            case "success":
+                metrics.succeeded.addAndGet(count);
+                break;
+            case "retry":
+                metrics.retried.addAndGet(count);
+                if(blocked) metrics.blockedRetries.addAndGet(count);
+                break;
+            default:
+                metrics.failed.addAndGet(count);
+        }
+    }
+
+    /**
+     * Counts the works of every worker that are not finished yet, batched workers count the payloads left
+     * on their store instead of their flush works
+     * @param infos every work of the module, as found by its common tag
+     * @param batches how many payloads are pending or running on the stores of batched workers, see BatchStore.depths
+     * @return the queue depth of every worker with unfinished works, keyed by name
+     */
+    static Map<String, Long> queueDepths(List<WorkInfo> infos, Map<String, Integer> batches) {
+        HashMap<String, Long> depths = new HashMap<>();
+        for (WorkInfo info : infos) {
+            if(info.getState().isFinished()) continue;
+            for (String tag : info.getTags()) {
+                if(!isWorkerTag(tag) || batches.containsKey(tag)) continue;
+                Long depth = depths.get(tag);
+                depths.put(tag, depth == null ? 1 : depth + 1);
+            }
+        }
+        for (Map.Entry<String, Integer> entry : batches.entrySet()) depths.put(entry.getKey(), (long) entry.getValue());
+        return depths;
+    }
+
+    /**
+     * Works are tagged with the module's tag, their worker's name, the handle of their stored payload
+     * and, by WorkManager, the class that runs them
+     */
+    private static boolean isWorkerTag(String tag) {
+        return !tag.equals(BackgroundWorkerModule.WORK_TAG) && !tag.startsWith(PayloadStore.HANDLE_TAG)
+                && !tag.equals(BackgroundWorker.class.getName()) && !tag.equals(HttpWorker.class.getName());
+    }
+
+    /**
+     * @param queueDepths the depths counted by queueDepths
+     * @return the metrics of every worker that recorded something or has unfinished works, keyed by name
+     */
+    static Bundle toBundle(Map<String, Long> queueDepths) {
+        Bundle all = new Bundle();
+        for (Map.Entry<String, WorkerMetrics> entry : workers.entrySet()) {
+            Long depth = queueDepths.get(entry.getKey());
+            all.putBundle(entry.getKey(), entry.getValue().toBundle(depth != null ? depth : 0));
+        }
+        for (Map.Entry<String, Long> entry : queueDepths.entrySet())
+            if(!all.containsKey(entry.getKey())) all.putBundle(entry.getKey(), new WorkerMetrics().toBundle(entry.getValue()));
+        return all;
+    }
+
+}
@@ -8,6 +8,8 @@ import androidx.work.WorkInfo;
 
 import com.facebook.react.bridge.ReadableMap;
 
+import java.util.Map;
+
 import javax.annotation.Nullable;
 
 public class Parser {
@@ -28,12 +30,20 @@ public class Parser {
 
         if(constraints==null) return null;
 
-        final NetworkType networkType = getNetworkType(constraints.hasKey("network") ? constraints.getString("network") : "notRequired");
+        return getConstraints(constraints.toHashMap());
+
+    }
+
+    static Constraints getConstraints(@Nullable Map<String, Object> constraints) {
+
+        if(constraints==null) return null;
+
+        final NetworkType networkType = getNetworkType(constraints.containsKey("network") ? (String) constraints.get("network") : "notRequired");
 
-        final boolean requiresCharging      = constraints.hasKey("battery") && constraints.getString("battery").equals("charging");
-        final boolean requiresDeviceIdle    = constraints.hasKey("idle"   ) && constraints.getString("idle").equals("idle");
-        final boolean requiresStorageNotLow = constraints.hasKey("storage") && constraints.getString("storage").equals("notLow");
-        final boolean requiresBatteryNotLow = constraints.hasKey("battery") && constraints.getString("battery").equals("notLow");
+        final boolean requiresCharging      = "charging".equals(constraints.get("battery"));
+        final boolean requiresDeviceIdle    = "idle".equals(constraints.get("idle"));
+        final boolean requiresStorageNotLow = "notLow".equals(constraints.get("storage"));
+        final boolean requiresBatteryNotLow = "notLow".equals(constraints.get("battery"));
 
         return new Constraints.Builder()
                 .setRequiredNetworkType(networkType)
@@ -57,13 +67,24 @@ public class Parser {
         }
     }
 
-    static public Bundle getWorkInfo(WorkInfo info) {
+    /**
+     * Finished works are read from the ResultStore, it holds their whole value and outlives WorkManager's pruning
+     * @param info the work's info, as given by WorkManager
+     * @param results the store the work's result is read from
+     * @return the info object sent to JS
+     */
+    static public Bundle getWorkInfo(WorkInfo info, ResultStore results) {
+
+        Bundle stored = info.getState().isFinished() ? results.getInfo(info.getId().toString()) : null;
+        if(stored!=null) return stored;
 
         Bundle _info = new Bundle();
 
         _info.putString("state", getWorkState(info.getState()));
         _info.putInt("attemptCount", info.getRunAttemptCount());
         _info.putString("value", info.getOutputData().getString("value"));
+        _info.putString("valueType", info.getOutputData().getString("valueType"));
+        _info.putString("progress", info.getProgress().getString("progress"));
 
         return _info;
     }
@@ -0,0 +1,286 @@
+package com.backgroundworker;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+/**
+ * Append-only store for payloads too big to travel inside the work's input Data, which WorkManager
+ * persists on every request and caps at 10KB.
+ * Payloads are appended to segment files as [length][UTF-8 bytes] records and the work only carries
+ * a handle, "segment:offset", that BackgroundWorker resolves when the work runs.
+ * Records are released once their works reach a terminal state, the released offsets of each segment
+ * are kept in a small index file and a segment is deleted as soon as all of its records are released.
+ * Appends happen under the store's monitor, syncing doesn't, so a flush never holds up another caller's put.
+ */
+class PayloadStore {
+
+    private static final String TAG = "PayloadStore";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final long SEGMENT_SIZE = 4 * 1024 * 1024;
+    private static final long SWEEP_GRACE = 60 * 1000;
+
+    /**
+     * Payloads longer than this are written to the store instead of the input Data
+     */
+    static final int INLINE_LIMIT = 2048;
+
+    /**
+     * Works whose payload lives on the store are tagged with this prefix followed by the handle,
+     * so the handles still in use can be found from WorkManager
+     */
+    static final String HANDLE_TAG = "payload:";
+
+    /**
+     * The bytes of a stored payload, they stay in place until the payload is released
+     */
+    static class Slice {
+        final File file;
+        final long offset;
+        final int length;
+        Slice(File file, long offset, int length) {
+            this.file = file;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private static volatile PayloadStore instance;
+
+    private final File dir;
+    private final HashMap<Integer, List<Long>> records = new HashMap<>();
+    private final HashMap<Integer, Set<Long>> released = new HashMap<>();
+    private int active;
+    private long activeSize;
+    private FileOutputStream out;
+    // segments rolled over since the last flush, they are synced and closed by the next one
+    private final List<FileOutputStream> closing = new ArrayList<>();
+    // held while syncing, so flushes don't sync the same bytes twice
+    private final Object syncLock = new Object();
+    // how many payloads were appended, and how many of them were synced, the latter guarded by syncLock
+    private long written;
+    private long synced;
+
+    static PayloadStore get(Context context) {
+        PayloadStore _instance = instance;
+        if(_instance != null) return _instance;
+        synchronized (PayloadStore.class) {
+            if(instance == null) instance = new PayloadStore(new File(context.getFilesDir(), "backgroundworker/payloads"));
+            return instance;
+        }
+    }
+
+    private PayloadStore(File dir) {
+        this.dir = dir;
+        if(!dir.exists() && !dir.mkdirs()) Log.w(TAG, "could not create " + dir);
+        File[] files = dir.listFiles();
+        if(files != null) for (File file : files) {
+            String name = file.getName();
+            if(!name.endsWith(".log")) continue;
+            int segment = Integer.parseInt(name.substring(0, name.length() - 4));
+            records.put(segment, scan(file));
+            released.put(segment, readReleased(segment));
+            active = Math.max(active, segment + 1);
+        }
+        records.put(active, new ArrayList<>());
+        released.put(active, new HashSet<>());
+        for (Integer segment : new ArrayList<>(records.keySet())) deleteIfReleased(segment);
+    }
+
+    /**
+     * Appends a payload to the store, it is only durable after flush is called
+     * @param payload the payload to be stored
+     * @return the handle to read the payload back
+     */
+    synchronized String put(String payload) throws IOException {
+        if(out == null) out = new FileOutputStream(segmentFile(active), true);
+        byte[] bytes = payload.getBytes(UTF8);
+        long offset = activeSize;
+        out.write(ByteBuffer.allocate(4).putInt(bytes.length).array());
+        out.write(bytes);
+        activeSize += 4 + bytes.length;
+        written++;
+        records.get(active).add(offset);
+        String handle = active + ":" + offset;
+        if(activeSize >= SEGMENT_SIZE) roll();
+        return handle;
+    }
+
+    /**
+     * Makes every payload stored until now durable, so works referencing them can be enqueued,
+     * the segments are only synced if payloads were appended since the last flush and outside the store's monitor
+     */
+    void flush() throws IOException {
+        synchronized (syncLock) {
+            long target;
+            FileOutputStream _out;
+            List<FileOutputStream> _closing;
+            synchronized (this) {
+                if(written == synced) return;
+                target = written;
+                _out = out;
+                _closing = new ArrayList<>(closing);
+                closing.clear();
+            }
+            for (FileOutputStream stream : _closing) {
+                stream.getFD().sync();
+                stream.close();
+            }
+            if(_out != null) _out.getFD().sync();
+            synced = target;
+        }
+    }
+
+    /**
+     * Reads a payload back
+     * @param handle the handle returned by put
+     * @return the payload or null if it was already released
+     */
+    @Nullable
+    synchronized String read(String handle) throws IOException {
+        int segment = segmentOf(handle);
+        long offset = offsetOf(handle);
+        File file = segmentFile(segment);
+        if(!file.exists()) return null;
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            in.seek(offset);
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            return new String(bytes, UTF8);
+        }
+    }
+
+    /**
+     * Locates a payload on its segment, so it can be streamed instead of read in memory
+     * @param handle the handle returned by put
+     * @return where the payload's bytes are or null if it was already released
+     */
+    @Nullable
+    synchronized Slice locate(String handle) throws IOException {
+        int segment = segmentOf(handle);
+        long offset = offsetOf(handle);
+        File file = segmentFile(segment);
+        if(!file.exists()) return null;
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            in.seek(offset);
+            return new Slice(file, offset + 4, in.readInt());
+        }
+    }
+
+    /**
+     * Releases a payload whose work reached a terminal state
+     * @param handle the handle returned by put
+     */
+    synchronized void release(String handle) {
+        int segment = segmentOf(handle);
+        long offset = offsetOf(handle);
+        Set<Long> _released = released.get(segment);
+        if(_released == null || !_released.add(offset)) return;
+        try (FileWriter writer = new FileWriter(releasedFile(segment), true)) {
+            writer.write(offset + "\n");
+        } catch (IOException e) { Log.e(TAG, "could not release " + handle, e); }
+        deleteIfReleased(segment);
+    }
+
+    /**
+     * Releases every record of the closed segments that no live work references anymore,
+     * this catches the payloads of works that were cancelled or pruned without ever running
+     * @param live the handles referenced by works that are not finished yet
+     */
+    synchronized void sweep(Set<String> live) {
+        long now = System.currentTimeMillis();
+        for (Integer segment : new ArrayList<>(records.keySet())) {
+            if(segment == active || now - segmentFile(segment).lastModified() < SWEEP_GRACE) continue;
+            for (Long offset : new ArrayList<>(records.get(segment))) {
+                String handle = segment + ":" + offset;
+                if(!live.contains(handle)) release(handle);
+            }
+        }
+    }
+
+    private void roll() {
+        closing.add(out);
+        out = null;
+        int closed = active;
+        active++;
+        activeSize = 0;
+        records.put(active, new ArrayList<>());
+        released.put(active, new HashSet<>());
+        deleteIfReleased(closed);
+    }
+
+    private void deleteIfReleased(int segment) {
+        if(segment == active) return;
+        List<Long> _records = records.get(segment);
+        Set<Long> _released = released.get(segment);
+        if(_records == null || _released == null || _released.size() < _records.size()) return;
+        if(!segmentFile(segment).delete()) Log.w(TAG, "could not delete segment " + segment);
+        releasedFile(segment).delete();
+        records.remove(segment);
+        released.remove(segment);
+    }
+
+    private static List<Long> scan(File file) {
+        List<Long> offsets = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            long offset = 0;
+            while (true) {
+                int length = in.readInt();
+                if(in.skipBytes(length) < length) break;
+                offsets.add(offset);
+                offset += 4 + length;
+            }
+        } catch (EOFException e) {
+            // reached the end of the segment
+        } catch (IOException e) { Log.e(TAG, "could not scan " + file, e); }
+        return offsets;
+    }
+
+    private Set<Long> readReleased(int segment) {
+        Set<Long> offsets = new HashSet<>();
+        File file = releasedFile(segment);
+        if(!file.exists()) return offsets;
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = reader.readLine()) != null) if(!line.isEmpty()) offsets.add(Long.parseLong(line));
+        } catch (IOException | NumberFormatException e) { Log.e(TAG, "could not read " + file, e); }
+        return offsets;
+    }
+
+    private File segmentFile(int segment) {
+        return new File(dir, segment + ".log");
+    }
+
+    private File releasedFile(int segment) {
+        return new File(dir, segment + ".released");
+    }
+
+    private static int segmentOf(String handle) {
+        return Integer.parseInt(handle.substring(0, handle.indexOf(':')));
+    }
+
+    private static long offsetOf(String handle) {
+        return Long.parseLong(handle.substring(handle.indexOf(':') + 1));
+    }
+
+}
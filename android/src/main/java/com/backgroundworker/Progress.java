@@ -0,0 +1,75 @@
+package com.backgroundworker;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.HashMap;
+
+/**
+ * Throttles the progress reported by JS for running works, a work publishes at most once every INTERVAL
+ * and the reports in between are coalesced, only the latest one is published once the interval is over,
+ * so a fast reporter neither floods WorkManager's database nor the listeners.
+ * All the state is confined to the main thread.
+ */
+class Progress {
+
+    private static final long INTERVAL = 500;
+
+    /**
+     * Publishes the progress of a work, to WorkManager and to the headless notification
+     */
+    interface Sink {
+        void publish(String data);
+    }
+
+    private static class Entry {
+        final Sink sink;
+        long publishedAt = 0;
+        String latest;
+        final Runnable trailing;
+        Entry(Sink sink) {
+            this.sink = sink;
+            this.trailing = () -> publish(this);
+        }
+    }
+
+    private static final Handler handler = new Handler(Looper.getMainLooper());
+    private static final HashMap<String, Entry> running = new HashMap<>();
+
+    static void register(String id, Sink sink) {
+        handler.post(() -> running.put(id, new Entry(sink)));
+    }
+
+    static void unregister(String id) {
+        handler.post(() -> {
+            Entry entry = running.remove(id);
+            if(entry != null) handler.removeCallbacks(entry.trailing);
+        });
+    }
+
+    /**
+     * @param id the work's id
+     * @param data the progress sent by JS, as JSON
+     */
+    static void report(String id, String data) {
+        handler.post(() -> {
+            Entry entry = running.get(id);
+            if(entry == null) return;
+            boolean waiting = entry.latest != null;
+            entry.latest = data;
+            if(waiting) return;
+            long wait = entry.publishedAt + INTERVAL - SystemClock.elapsedRealtime();
+            if(wait <= 0) publish(entry);
+            else handler.postDelayed(entry.trailing, wait);
+        });
+    }
+
+    private static void publish(Entry entry) {
+        if(entry.latest == null) return;
+        entry.publishedAt = SystemClock.elapsedRealtime();
+        entry.sink.publish(entry.latest);
+        entry.latest = null;
+    }
+
+}
@@ -0,0 +1,49 @@
+package com.backgroundworker;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Tells JS about the results of native works, which never reach JS while they run.
+ * The results of every work finished during INTERVAL are sent together, in one "nativeResults" event per worker,
+ * and only while react is running, results missed meanwhile can still be read from the ResultStore.
+ * All the state is confined to the main thread.
+ */
+class ResultNotifier {
+
+    static final String EVENT = "nativeResults";
+    private static final long INTERVAL = 1000;
+
+    private static final Handler handler = new Handler(Looper.getMainLooper());
+    private static final HashMap<String, Bundle> pending = new HashMap<>();
+    private static final Runnable flush = ResultNotifier::flush;
+
+    /**
+     * @param worker the worker's name
+     * @param id the work's id
+     * @param info the work's info, as built by the ResultStore
+     */
+    static void offer(String worker, String id, Bundle info) {
+        handler.post(() -> {
+            if(pending.isEmpty()) handler.postDelayed(flush, INTERVAL);
+            Bundle infos = pending.get(worker);
+            if(infos == null) pending.put(worker, infos = new Bundle());
+            infos.putBundle(id, info);
+        });
+    }
+
+    private static void flush() {
+        for (Map.Entry<String, Bundle> entry : pending.entrySet()) {
+            Bundle event = new Bundle();
+            event.putString("worker", entry.getKey());
+            event.putBundle("infos", entry.getValue());
+            Emitter.emit(EVENT, event);
+        }
+        pending.clear();
+    }
+
+}
@@ -0,0 +1,312 @@
+package com.backgroundworker;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Bundle;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+/**
+ * Persistent store of the works' results, keyed by work id, so results outlive WorkManager's pruning of
+ * finished works, values are not bound by the 10KB limit of the output Data, and reading a result
+ * doesn't query WorkManager's database.
+ * Results are appended to a single log as [meta length][meta JSON][value length][UTF-8 value] records,
+ * only the metadata is kept in memory and the most recently read values are cached on a small LRU.
+ * Results older than the TTL, and the oldest results once the live ones take more than the maximum size,
+ * are evicted, and the log is rewritten once most of it is evicted records.
+ */
+class ResultStore {
+
+    private static final String TAG = "ResultStore";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String PREFERENCES = "com.backgroundworker.results";
+    private static final long DEFAULT_TTL = 24 * 60 * 60 * 1000;
+    private static final long DEFAULT_MAX_SIZE = 2 * 1024 * 1024;
+    private static final int CACHE_SIZE = 64;
+    private static final long COMPACT_MIN_SIZE = 64 * 1024;
+
+    /**
+     * Values longer than this are only kept here, they are left out of the work's output Data
+     */
+    static final int INLINE_LIMIT = 2048;
+
+    private static class Entry {
+        final String worker;
+        final String state;
+        @Nullable final String valueType;
+        final int attemptCount;
+        final long finishedAt;
+        final long offset;
+        final int length;
+        Entry(JSONObject meta, long offset, int length) {
+            this.worker = meta.optString("worker");
+            this.state = meta.optString("state");
+            this.valueType = meta.isNull("valueType") ? null : meta.optString("valueType");
+            this.attemptCount = meta.optInt("attemptCount");
+            this.finishedAt = meta.optLong("finishedAt");
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private static volatile ResultStore instance;
+
+    private final File file;
+    private final SharedPreferences preferences;
+    // in finishing order, so the eldest entries are evicted first
+    private final LinkedHashMap<String, Entry> index = new LinkedHashMap<>();
+    private final LinkedHashMap<String, String> cache = new LinkedHashMap<String, String>(CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+    private long size;
+    private long liveSize;
+    private DataOutputStream out;
+
+    static ResultStore get(Context context) {
+        ResultStore _instance = instance;
+        if(_instance != null) return _instance;
+        synchronized (ResultStore.class) {
+            if(instance == null) instance = new ResultStore(
+                    new File(context.getFilesDir(), "backgroundworker/results.log"),
+                    context.getApplicationContext().getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE));
+            return instance;
+        }
+    }
+
+    /**
+     * @return the store or null if it was not loaded yet, loading it reads the whole log
+     */
+    @Nullable
+    static ResultStore peek() {
+        return instance;
+    }
+
+    private ResultStore(File file, SharedPreferences preferences) {
+        this.file = file;
+        this.preferences = preferences;
+        File dir = file.getParentFile();
+        if(dir != null && !dir.exists() && !dir.mkdirs()) Log.w(TAG, "could not create " + dir);
+        scan();
+    }
+
+    /**
+     * @param ttl how long results are kept, in milliseconds
+     * @param maxSize how many bytes the live results can take on disk
+     */
+    synchronized void configure(long ttl, long maxSize) {
+        preferences.edit().putLong("ttl", ttl).putLong("maxSize", maxSize).commit();
+        evict();
+    }
+
+    /**
+     * Stores the result of a work that reached a terminal state
+     * @param id the work's id
+     * @param worker the worker's name
+     * @param state succeeded or failed
+     * @param value the value returned by the workflow
+     * @param valueType the value's payloadType, null for json
+     * @param attemptCount how many times the work ran
+     */
+    synchronized void put(String id, String worker, String state, @Nullable String value, @Nullable String valueType, int attemptCount) {
+        try {
+            JSONObject meta = new JSONObject();
+            meta.put("id", id);
+            meta.put("worker", worker);
+            meta.put("state", state);
+            meta.put("valueType", valueType);
+            meta.put("attemptCount", attemptCount);
+            meta.put("finishedAt", System.currentTimeMillis());
+            byte[] metaBytes = meta.toString().getBytes(UTF8);
+            byte[] valueBytes = value != null ? value.getBytes(UTF8) : null;
+            if(out == null) out = new DataOutputStream(new FileOutputStream(file, true));
+            long offset = size;
+            int length = 8 + metaBytes.length + (valueBytes != null ? valueBytes.length : 0);
+            out.writeInt(metaBytes.length);
+            out.write(metaBytes);
+            out.writeInt(valueBytes != null ? valueBytes.length : -1);
+            if(valueBytes != null) out.write(valueBytes);
+            out.flush();
+            size += length;
+            Entry previous = index.remove(id);
+            if(previous != null) liveSize -= previous.length;
+            index.put(id, new Entry(meta, offset, length));
+            liveSize += length;
+            cache.put(id, value);
+        } catch (IOException | JSONException e) { Log.e(TAG, "could not store result of " + id, e); }
+        evict();
+    }
+
+    /**
+     * Builds the same info object Parser.getWorkInfo builds for a finished work
+     * @param id the work's id
+     * @return the work's info or null if its result is not stored
+     */
+    @Nullable
+    synchronized Bundle getInfo(String id) {
+        Entry entry = index.get(id);
+        if(entry == null || isExpired(entry, System.currentTimeMillis())) return null;
+        Bundle info = new Bundle();
+        info.putString("state", entry.state);
+        info.putInt("attemptCount", entry.attemptCount);
+        info.putString("value", readValue(id, entry));
+        info.putString("valueType", entry.valueType);
+        info.putDouble("finishedAt", entry.finishedAt);
+        return info;
+    }
+
+    /**
+     * Like getInfo, but it never reads from disk
+     * @param id the work's id
+     * @return the work's info or null if its result is not stored or its value is not cached
+     */
+    @Nullable
+    synchronized Bundle getCachedInfo(String id) {
+        if(!cache.containsKey(id)) return null;
+        return getInfo(id);
+    }
+
+    /**
+     * @param worker the worker's name
+     * @param since only results stored after this time, in milliseconds, are returned
+     * @return the infos of the worker's results, keyed by id and in finishing order
+     */
+    synchronized LinkedHashMap<String, Bundle> getInfos(String worker, long since) {
+        LinkedHashMap<String, Bundle> infos = new LinkedHashMap<>();
+        for (Map.Entry<String, Entry> entry : index.entrySet()) {
+            if(!entry.getValue().worker.equals(worker) || entry.getValue().finishedAt < since) continue;
+            Bundle info = getInfo(entry.getKey());
+            if(info != null) infos.put(entry.getKey(), info);
+        }
+        return infos;
+    }
+
+    @Nullable
+    private String readValue(String id, Entry entry) {
+        if(cache.containsKey(id)) return cache.get(id);
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            in.seek(entry.offset);
+            in.skipBytes(in.readInt());
+            int length = in.readInt();
+            String value = null;
+            if(length >= 0) {
+                byte[] bytes = new byte[length];
+                in.readFully(bytes);
+                value = new String(bytes, UTF8);
+            }
+            cache.put(id, value);
+            return value;
+        } catch (IOException e) {
+            Log.e(TAG, "could not read result of " + id, e);
+            return null;
+        }
+    }
+
+    private boolean isExpired(Entry entry, long now) {
+        return now - entry.finishedAt > preferences.getLong("ttl", DEFAULT_TTL);
+    }
+
+    private void evict() {
+        long now = System.currentTimeMillis();
+        long maxSize = preferences.getLong("maxSize", DEFAULT_MAX_SIZE);
+        Iterator<Map.Entry<String, Entry>> entries = index.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<String, Entry> entry = entries.next();
+            if(liveSize <= maxSize && !isExpired(entry.getValue(), now)) break;
+            entries.remove();
+            cache.remove(entry.getKey());
+            liveSize -= entry.getValue().length;
+        }
+        if(size - liveSize > Math.max(liveSize, COMPACT_MIN_SIZE)) compact();
+    }
+
+    /**
+     * Rewrites the log with the live records only
+     */
+    private void compact() {
+        File compacted = new File(file.getPath() + ".tmp");
+        List<String> ids = new ArrayList<>(index.keySet());
+        try (RandomAccessFile in = new RandomAccessFile(file, "r");
+             DataOutputStream _out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(compacted)))) {
+            long offset = 0;
+            LinkedHashMap<String, Entry> moved = new LinkedHashMap<>();
+            for (String id : ids) {
+                Entry entry = index.get(id);
+                byte[] record = new byte[entry.length];
+                in.seek(entry.offset);
+                in.readFully(record);
+                _out.write(record);
+                int metaLength = ByteBuffer.wrap(record, 0, 4).getInt();
+                moved.put(id, new Entry(new JSONObject(new String(record, 4, metaLength, UTF8)), offset, entry.length));
+                offset += entry.length;
+            }
+            _out.flush();
+            if(out != null) out.close();
+            out = null;
+            if(!compacted.renameTo(file)) throw new IOException("could not replace " + file);
+            index.clear();
+            index.putAll(moved);
+            size = offset;
+            liveSize = offset;
+        } catch (IOException | JSONException e) {
+            Log.e(TAG, "could not compact results", e);
+            compacted.delete();
+        }
+    }
+
+    private void scan() {
+        if(!file.exists()) return;
+        long offset = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                byte[] metaBytes = new byte[in.readInt()];
+                in.readFully(metaBytes);
+                int valueLength = in.readInt();
+                if(valueLength > 0 && in.skipBytes(valueLength) < valueLength) break;
+                JSONObject meta = new JSONObject(new String(metaBytes, UTF8));
+                int length = 8 + metaBytes.length + Math.max(0, valueLength);
+                String id = meta.getString("id");
+                Entry previous = index.remove(id);
+                if(previous != null) liveSize -= previous.length;
+                index.put(id, new Entry(meta, offset, length));
+                liveSize += length;
+                offset += length;
+            }
+        } catch (EOFException e) {
+            // reached the end of the log
+        } catch (IOException | JSONException e) { Log.e(TAG, "could not scan " + file, e); }
+        size = offset;
+        // a record cut short by process death is dropped, so the next one starts where the log is consistent
+        if(file.length() > size) {
+            try (RandomAccessFile _file = new RandomAccessFile(file, "rw")) {
+                _file.setLength(size);
+            } catch (IOException e) { Log.e(TAG, "could not truncate " + file, e); }
+        }
+        evict();
+    }
+
+}
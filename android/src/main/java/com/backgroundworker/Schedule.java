@@ -0,0 +1,148 @@
+package com.backgroundworker;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import androidx.work.Constraints;
+import androidx.work.OneTimeWorkRequest;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+/**
+ * Persisted state of the periodic workers' schedules.
+ * It remembers which version of each worker is scheduled, so registering an unchanged worker again keeps
+ * the live schedule instead of resetting it.
+ * Workers repeating faster than WorkManager's 15 minutes floor, and opting into it, are scheduled as a chain of one time works,
+ * each tick enqueues the next one when it finishes, aiming at the planned time of the next tick rather than
+ * at its own end, so the chain doesn't drift, and ticks missed while the constraints weren't met are
+ * coalesced into the next one instead of running back to back.
+ * Only the tick recorded here can enqueue the next one, so a replaced chain dies at its next tick.
+ * A tick is recorded once its successor was persisted by WorkManager, so the successor also goes on while its
+ * predecessor is still the recorded one, which happens when the process dies in between.
+ */
+class Schedule {
+
+    static final int MIN_PERIODIC_INTERVAL = 15;
+
+    private static final String PREFERENCES = "com.backgroundworker.schedule";
+    private static final String VERSION_PREFIX = "version:";
+    private static final String TICK_PREFIX = "tick:";
+
+    private static volatile SharedPreferences preferences;
+
+    private static SharedPreferences get(Context context) {
+        SharedPreferences _preferences = preferences;
+        if(_preferences != null) return _preferences;
+        synchronized (Schedule.class) {
+            if(preferences == null) preferences = context.getApplicationContext().getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+            return preferences;
+        }
+    }
+
+    /**
+     * @param name the worker's name
+     * @return the scheduled version of the worker, 0 if it isn't scheduled
+     */
+    static int version(Context context, String name) {
+        return get(context).getInt(VERSION_PREFIX + name, 0);
+    }
+
+    /**
+     * Records a new schedule
+     * @param name the worker's name
+     * @param version the scheduled version
+     * @param tick the first tick's id, null for a PeriodicWorkRequest
+     */
+    static synchronized void set(Context context, String name, int version, @Nullable String tick) {
+        get(context).edit()
+                .putInt(VERSION_PREFIX + name, version)
+                .putString(TICK_PREFIX + name, tick)
+                .commit();
+    }
+
+    /**
+     * A tick that is neither the recorded one nor the successor of the recorded one belongs to a replaced
+     * or cancelled chain and must not go on
+     * @param name the worker's name
+     * @param current the id of the tick that finished
+     * @param previous the id of the tick that enqueued it, null for the first tick
+     * @return true if the chain of the tick is the live one
+     */
+    static boolean isCurrent(Context context, String name, String current, @Nullable String previous) {
+        String recorded = get(context).getString(TICK_PREFIX + name, null);
+        return current.equals(recorded) || (previous != null && previous.equals(recorded));
+    }
+
+    /**
+     * Hands the schedule over to the next tick, once it was enqueued
+     * @param name the worker's name
+     * @param current the id of the tick that finished
+     * @param previous the id of the tick that enqueued it, null for the first tick
+     * @param next the id of the next tick
+     * @return false if the chain was replaced or cancelled meanwhile, the next tick must be cancelled then
+     */
+    static synchronized boolean advance(Context context, String name, String current, @Nullable String previous, String next) {
+        if(!isCurrent(context, name, current, previous)) return false;
+        get(context).edit().putString(TICK_PREFIX + name, next).commit();
+        return true;
+    }
+
+    /**
+     * Forgets the schedule of a cancelled worker
+     * @param name the worker's name
+     */
+    static synchronized void clear(Context context, String name) {
+        get(context).edit()
+                .remove(VERSION_PREFIX + name)
+                .remove(TICK_PREFIX + name)
+                .commit();
+    }
+
+    /**
+     * Workers only run as a chain of ticks when they ask for it, the others have their interval clamped to 15 minutes
+     * @param worker the registered worker information
+     * @return true if the worker opted into short intervals and repeats faster than a PeriodicWorkRequest can
+     */
+    static boolean isShortInterval(WorkerRegistry.Definition worker) {
+        return Boolean.TRUE.equals(worker.worker.get("shortInterval"))
+                && worker.getInt("repeatInterval", MIN_PERIODIC_INTERVAL) < MIN_PERIODIC_INTERVAL;
+    }
+
+    /**
+     * Builds a tick of a short interval worker, it carries its planned time so the next tick is planned from it
+     * @param worker the registered worker information
+     * @param scheduledAt when the tick is planned to run, in milliseconds
+     * @param now the current time, in milliseconds
+     * @param previous the id of the tick that enqueues this one, null for the first tick
+     * @return the tick's request
+     */
+    static OneTimeWorkRequest tick(WorkerRegistry.Definition worker, long scheduledAt, long now, @Nullable String previous) {
+        OneTimeWorkRequest.Builder builder = new OneTimeWorkRequest.Builder(BackgroundWorker.class)
+                .setInitialDelay(Math.max(0, scheduledAt - now), TimeUnit.MILLISECONDS)
+                .setInputData(BackgroundWorkerModule.getInputData(worker)
+                        .putLong("scheduledAt", scheduledAt)
+                        .putString("previousTick", previous)
+                        .build())
+                .addTag(BackgroundWorkerModule.WORK_TAG)
+                .addTag(worker.name);
+        Constraints constraints = worker.getConstraints();
+        if(constraints != null) builder.setConstraints(constraints);
+        BackgroundWorkerModule.setBackoffCriteria(builder, worker);
+        return builder.build();
+    }
+
+    /**
+     * Plans the tick after one that was planned for scheduledAt, skipping the ticks that are already late
+     * @param scheduledAt when the finished tick was planned to run
+     * @param interval the worker's repeat interval, in milliseconds
+     * @param now the current time
+     * @return the first planned time after now
+     */
+    static long next(long scheduledAt, long interval, long now) {
+        if(scheduledAt + interval > now) return scheduledAt + interval;
+        return scheduledAt + ((now - scheduledAt) / interval + 1) * interval;
+    }
+
+}
@@ -0,0 +1,182 @@
+package com.backgroundworker;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.lifecycle.LiveData;
+import androidx.lifecycle.Observer;
+import androidx.work.WorkInfo;
+import androidx.work.WorkManager;
+
+import com.facebook.react.bridge.ReactApplicationContext;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Single listener channel for the info of every work created by this module.
+ * Instead of one observer and one event per work, it observes all the works through their common tag,
+ * diffs them against what was already sent and emits the changes of the subscribed works together
+ * in one "workInfos" event every FLUSH_INTERVAL.
+ * Subscriptions are reference counted, so many JS listeners of the same work share it.
+ * All the state is confined to the main thread, only building the infos happens on the channel's own thread,
+ * since it reads the results from the ResultStore, and the built infos are queued back on the main thread.
+ */
+class WorkInfoChannel {
+
+    static final String EVENT = "workInfos";
+    private static final String TAG = "WorkInfoChannel";
+    private static final long FLUSH_INTERVAL = 100;
+
+    private final ReactApplicationContext context;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    // builds the infos in the order their changes arrived
+    private final ExecutorService builder = Executors.newSingleThreadExecutor();
+
+    private final HashMap<String, Integer> subscribers = new HashMap<>();
+    private final HashMap<String, WorkInfo> emitted = new HashMap<>();
+    private final LinkedHashMap<String, Bundle> changes = new LinkedHashMap<>();
+    private final Observer<List<WorkInfo>> observer = this::onChanged;
+    private final Runnable flush = this::flush;
+
+    private LiveData<List<WorkInfo>> data;
+    private boolean flushScheduled = false;
+
+    WorkInfoChannel(ReactApplicationContext context) {
+        this.context = context;
+    }
+
+    /**
+     * Adds a subscriber to some work's info, the first subscriber also receives the current info
+     * @param id the work's id
+     */
+    void subscribe(String id) {
+        // looked up before reaching the main thread, the first lookup loads the batch stores from disk
+        BatchStore store = BatchStore.find(context, id);
+        handler.post(() -> {
+
+            Integer count = subscribers.get(id);
+            subscribers.put(id, count==null ? 1 : count+1);
+            if(count!=null) return;
+
+            emitted.remove(id);
+
+            if(store!=null) {
+                Bundle info = store.getInfo(id);
+                if(info!=null) queue(id, info);
+                return;
+            }
+
+            if(data==null) {
+                data = WorkManagerConfiguration.getWorkManager(context).getWorkInfosByTagLiveData(BackgroundWorkerModule.WORK_TAG);
+                data.observeForever(observer);
+            }
+            else if(data.getValue()!=null) onChanged(data.getValue());
+
+        });
+    }
+
+    /**
+     * Removes a subscriber, the work stops being watched when the last one leaves
+     * @param id the work's id
+     */
+    void unsubscribe(String id) {
+        handler.post(() -> {
+
+            Integer count = subscribers.get(id);
+            if(count==null) return;
+            if(count>1) {
+                subscribers.put(id, count-1);
+                return;
+            }
+
+            subscribers.remove(id);
+            emitted.remove(id);
+            changes.remove(id);
+
+            if(subscribers.isEmpty()) stopObserving();
+
+        });
+    }
+
+    /**
+     * Sends some info that does not come from WorkManager, like the info of a batched payload
+     * @param id the work's id
+     * @param info the work's info, as built by Parser.getWorkInfo
+     */
+    void offer(String id, Bundle info) {
+        handler.post(() -> {
+            if(subscribers.containsKey(id)) queue(id, info);
+        });
+    }
+
+    void destroy() {
+        handler.post(() -> {
+            stopObserving();
+            handler.removeCallbacks(flush);
+            subscribers.clear();
+            emitted.clear();
+            changes.clear();
+            builder.shutdown();
+        });
+    }
+
+    private void stopObserving() {
+        if(data==null) return;
+        data.removeObserver(observer);
+        data = null;
+    }
+
+    private void onChanged(List<WorkInfo> infos) {
+        if(infos==null) return;
+        List<WorkInfo> changed = new ArrayList<>();
+        for (WorkInfo info : infos) {
+            String id = info.getId().toString();
+            if(!subscribers.containsKey(id) || info.equals(emitted.get(id))) continue;
+            emitted.put(id, info);
+            changed.add(info);
+        }
+        if(changed.isEmpty()) return;
+        try {
+            builder.execute(() -> {
+                ResultStore results = ResultStore.get(context);
+                LinkedHashMap<String, Bundle> built = new LinkedHashMap<>();
+                for (WorkInfo info : changed) built.put(info.getId().toString(), Parser.getWorkInfo(info, results));
+                handler.post(() -> {
+                    // unsubscribed while its info was being built
+                    for (String id : built.keySet()) if(subscribers.containsKey(id)) queue(id, built.get(id));
+                });
+            });
+        } catch (RejectedExecutionException e) { Log.w(TAG, "channel destroyed, changes dropped"); }
+    }
+
+    private void queue(String id, Bundle info) {
+        changes.put(id, info);
+        if(flushScheduled) return;
+        flushScheduled = true;
+        handler.postDelayed(flush, FLUSH_INTERVAL);
+    }
+
+    private void flush() {
+        flushScheduled = false;
+        if(changes.isEmpty()) return;
+        // the catalyst instance isn't up yet, or is being replaced, the changes wait for it instead of being stranded
+        if(!Emitter.isAvailable()) {
+            flushScheduled = true;
+            handler.postDelayed(flush, FLUSH_INTERVAL);
+            return;
+        }
+        Bundle infos = new Bundle();
+        for (String id : changes.keySet()) infos.putBundle(id, changes.get(id));
+        changes.clear();
+        Emitter.emit(EVENT, infos);
+    }
+
+}
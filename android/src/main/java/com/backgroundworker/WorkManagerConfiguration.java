@@ -0,0 +1,188 @@
+package com.backgroundworker;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.work.Configuration;
+import androidx.work.DelegatingWorkerFactory;
+import androidx.work.ListenableWorker;
+import androidx.work.WorkManager;
+import androidx.work.WorkerFactory;
+import androidx.work.WorkerParameters;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import okhttp3.OkHttpClient;
+
+/**
+ * WorkManager configuration provided by the library, with a dedicated bounded executor, a tunable scheduler limit and
+ * a WorkerFactory that hands the library's workers their shared dependencies, see WorkerDependencies.
+ * For on demand initialization the app removes WorkManager's default initializer from its manifest and its Application
+ * implements Configuration.Provider returning BackgroundWorkerPackage.getWorkManagerConfiguration, so WorkManager is
+ * only initialized when something uses it instead of on every cold start.
+ * Options set from JS are persisted and take effect on the next initialization, options set from the app win over them.
+ */
+public class WorkManagerConfiguration {
+
+    private static final String TAG = "WorkManagerConfiguration";
+    private static final String PREFERENCES = "com.backgroundworker.workmanager";
+    private static final long KEEP_ALIVE = 30;
+
+    /**
+     * Options set from the app, usually on Application.onCreate, any option left null falls back to the one set from JS,
+     * then to WorkManager's default
+     */
+    public static class Options {
+
+        @Nullable Integer executorThreads;
+        @Nullable Integer maxSchedulerLimit;
+        @Nullable WorkerFactory workerFactory;
+        @Nullable OkHttpClient httpClient;
+
+        /**
+         * @param executorThreads how many works WorkManager runs at the same time
+         */
+        public Options setExecutorThreads(int executorThreads) {
+            this.executorThreads = executorThreads;
+            return this;
+        }
+
+        /**
+         * @param maxSchedulerLimit how many enqueued works WorkManager hands to the system scheduler at once, at least 20
+         */
+        public Options setMaxSchedulerLimit(int maxSchedulerLimit) {
+            this.maxSchedulerLimit = maxSchedulerLimit;
+            return this;
+        }
+
+        /**
+         * @param workerFactory creates the app's own workers, the library's workers are still created by the library
+         */
+        public Options setWorkerFactory(WorkerFactory workerFactory) {
+            this.workerFactory = workerFactory;
+            return this;
+        }
+
+        /**
+         * @param httpClient the client native workers send their requests with, react native's one by default
+         */
+        public Options setHttpClient(OkHttpClient httpClient) {
+            this.httpClient = httpClient;
+            return this;
+        }
+
+    }
+
+    /**
+     * Creates the library's workers instead of WorkManager's reflection, every worker gets the same dependencies,
+     * built on the first worker with the HTTP client set on the options when the configuration was built
+     */
+    private static class Factory extends WorkerFactory {
+
+        @Nullable private final OkHttpClient httpClient;
+        private volatile WorkerDependencies dependencies;
+
+        Factory(@Nullable OkHttpClient httpClient) {
+            this.httpClient = httpClient;
+        }
+
+        @Nullable
+        @Override
+        public ListenableWorker createWorker(@NonNull Context appContext, @NonNull String workerClassName, @NonNull WorkerParameters workerParameters) {
+            if(workerClassName.equals(BackgroundWorker.class.getName()))
+                return new BackgroundWorker(appContext, workerParameters, getDependencies(appContext));
+            if(workerClassName.equals(HttpWorker.class.getName()))
+                return new HttpWorker(appContext, workerParameters, getDependencies(appContext));
+            return null;
+        }
+
+        private WorkerDependencies getDependencies(Context context) {
+            WorkerDependencies _dependencies = dependencies;
+            if(_dependencies != null) return _dependencies;
+            synchronized (this) {
+                if(dependencies == null) dependencies = WorkerDependencies.get(context).withHttpClient(httpClient);
+                return dependencies;
+            }
+        }
+
+    }
+
+    private static volatile Options options = new Options();
+
+    /**
+     * @param _options the options set from the app, they must be set before WorkManager is initialized
+     */
+    static void setOptions(Options _options) {
+        options = _options;
+    }
+
+    /**
+     * @param context any context
+     * @return the configuration WorkManager should be initialized with
+     */
+    static Configuration get(Context context) {
+
+        SharedPreferences preferences = context.getApplicationContext().getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+        Options _options = options;
+
+        DelegatingWorkerFactory workerFactory = new DelegatingWorkerFactory();
+        workerFactory.addFactory(new Factory(_options.httpClient));
+        if(_options.workerFactory != null) workerFactory.addFactory(_options.workerFactory);
+
+        Configuration.Builder builder = new Configuration.Builder().setWorkerFactory(workerFactory);
+
+        int executorThreads = _options.executorThreads != null ? _options.executorThreads : preferences.getInt("executorThreads", 0);
+        if(executorThreads > 0) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(executorThreads, executorThreads, KEEP_ALIVE, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+            executor.allowCoreThreadTimeOut(true);
+            builder.setExecutor(executor);
+        }
+
+        int maxSchedulerLimit = _options.maxSchedulerLimit != null ? _options.maxSchedulerLimit : preferences.getInt("maxSchedulerLimit", 0);
+        if(maxSchedulerLimit > 0) builder.setMaxSchedulerLimit(Math.max(Configuration.MIN_SCHEDULER_LIMIT, maxSchedulerLimit));
+
+        return builder.build();
+
+    }
+
+    /**
+     * Persists the options set from JS, WorkManager can't be configured again once initialized,
+     * so they take effect on the next initialization
+     * @param executorThreads how many works WorkManager runs at the same time, 0 for WorkManager's default
+     * @param maxSchedulerLimit how many works are handed to the system scheduler at once, 0 for WorkManager's default
+     */
+    static void persist(Context context, int executorThreads, int maxSchedulerLimit) {
+        context.getApplicationContext().getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE).edit()
+                .putInt("executorThreads", executorThreads)
+                .putInt("maxSchedulerLimit", maxSchedulerLimit)
+                .commit();
+    }
+
+    /**
+     * Every WorkManager access of the library goes through here, if the app removed the default initializer
+     * without providing a configuration, WorkManager is initialized on demand with the library's one
+     * @param context any context
+     * @return the WorkManager instance
+     */
+    static WorkManager getWorkManager(Context context) {
+        try {
+            return WorkManager.getInstance(context);
+        } catch (IllegalStateException e) {
+            synchronized (WorkManagerConfiguration.class) {
+                try {
+                    WorkManager.initialize(context.getApplicationContext(), get(context));
+                } catch (IllegalStateException initialized) {
+                    Log.d(TAG, "WorkManager was initialized meanwhile");
+                }
+            }
+            return WorkManager.getInstance(context);
+        }
+    }
+
+}
@@ -0,0 +1,66 @@
+package com.backgroundworker;
+
+import android.content.Context;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.annotation.Nullable;
+
+import okhttp3.OkHttpClient;
+
+/**
+ * The instances the library's workers share: the registry they read their worker from, the stores their payloads
+ * and results live on, and the executor their bookkeeping callbacks run on.
+ * The library's WorkerFactory builds them once and hands them to every worker it creates, workers created by
+ * WorkManager's reflection, when the app doesn't use the library's configuration, share the default ones.
+ */
+class WorkerDependencies {
+
+    private static volatile WorkerDependencies instance;
+    // runs the callbacks of the works' own WorkManager operations, like enqueueing the next tick of a schedule
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    final WorkerRegistry registry;
+    final PayloadStore payloads;
+    final ResultStore results;
+    final DedupIndex dedup;
+    final Executor callbackExecutor;
+    /**
+     * The client native workers send their requests with, react native's one when null
+     */
+    @Nullable final OkHttpClient httpClient;
+
+    private WorkerDependencies(WorkerRegistry registry, PayloadStore payloads, ResultStore results, DedupIndex dedup,
+                               Executor callbackExecutor, @Nullable OkHttpClient httpClient) {
+        this.registry = registry;
+        this.payloads = payloads;
+        this.results = results;
+        this.dedup = dedup;
+        this.callbackExecutor = callbackExecutor;
+        this.httpClient = httpClient;
+    }
+
+    /**
+     * @return the default dependencies, without an HTTP client of their own
+     */
+    static WorkerDependencies get(Context context) {
+        WorkerDependencies _instance = instance;
+        if(_instance != null) return _instance;
+        synchronized (WorkerDependencies.class) {
+            if(instance == null) instance = new WorkerDependencies(WorkerRegistry.get(context), PayloadStore.get(context),
+                    ResultStore.get(context), DedupIndex.get(context), executor, null);
+            return instance;
+        }
+    }
+
+    /**
+     * @param httpClient the client native workers send their requests with, react native's one when null
+     * @return the same dependencies with another HTTP client
+     */
+    WorkerDependencies withHttpClient(@Nullable OkHttpClient httpClient) {
+        return new WorkerDependencies(registry, payloads, results, dedup, callbackExecutor, httpClient);
+    }
+
+}
@@ -0,0 +1,213 @@
+package com.backgroundworker;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import androidx.work.BackoffPolicy;
+import androidx.work.Constraints;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.Nullable;
+
+/**
+ * Persisted registry of worker definitions, keyed by name and version.
+ * Work requests only carry the worker's name and version, everything else is read from here,
+ * and since the registry survives process death works can be enqueued and run before JS registers
+ * the worker again.
+ * A new version is created only when the definition changes, old versions are kept so works enqueued
+ * with them still run with the definition they were enqueued with.
+ */
+class WorkerRegistry {
+
+    private static final String TAG = "WorkerRegistry";
+    private static final String PREFERENCES = "com.backgroundworker.workers";
+
+    static class Definition {
+
+        final String name;
+        final int version;
+        final Map<String, Object> worker;
+        @Nullable final Map<String, Object> constraints;
+        @Nullable private final Constraints workConstraints;
+
+        Definition(String name, int version, Map<String, Object> worker, @Nullable Map<String, Object> constraints) {
+            this.name = name;
+            this.version = version;
+            this.worker = worker;
+            this.constraints = constraints;
+            this.workConstraints = Parser.getConstraints(constraints);
+        }
+
+        boolean has(String key) {
+            return worker.get(key) != null;
+        }
+
+        @Nullable
+        String getString(String key) {
+            Object value = worker.get(key);
+            return value instanceof String ? (String) value : null;
+        }
+
+        int getInt(String key, int fallback) {
+            Object value = worker.get(key);
+            return value instanceof Number ? ((Number) value).intValue() : fallback;
+        }
+
+        @Nullable
+        Constraints getConstraints() {
+            return workConstraints;
+        }
+
+        @Nullable
+        BackoffPolicy getBackoffPolicy() {
+            String policy = getString("backoffPolicy");
+            if("linear".equals(policy)) return BackoffPolicy.LINEAR;
+            if("exponential".equals(policy)) return BackoffPolicy.EXPONENTIAL;
+            return null;
+        }
+
+    }
+
+    private static volatile WorkerRegistry instance;
+
+    private final SharedPreferences preferences;
+    private final ConcurrentHashMap<String, Definition> definitions = new ConcurrentHashMap<>();
+
+    static WorkerRegistry get(Context context) {
+        WorkerRegistry _instance = instance;
+        if(_instance != null) return _instance;
+        synchronized (WorkerRegistry.class) {
+            if(instance == null) instance = new WorkerRegistry(context.getApplicationContext().getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE));
+            return instance;
+        }
+    }
+
+    private WorkerRegistry(SharedPreferences preferences) {
+        this.preferences = preferences;
+    }
+
+    /**
+     * Stores a worker definition, bumping its version if it changed
+     * @param name the worker's name
+     * @param worker the worker information
+     * @param constraints the worker constraints, if any
+     * @return the stored definition
+     */
+    synchronized Definition register(String name, Map<String, Object> worker, @Nullable Map<String, Object> constraints) {
+
+        Definition current = get(name);
+        if(current != null && current.worker.equals(normalize(worker)) && equals(current.constraints, normalize(constraints)))
+            return current;
+
+        int version = current == null ? preferences.getInt(name, 0) + 1 : current.version + 1;
+        Definition definition = new Definition(name, version, normalize(worker), normalize(constraints));
+
+        try {
+            JSONObject stored = new JSONObject();
+            stored.put("worker", new JSONObject(definition.worker));
+            if(definition.constraints != null) stored.put("constraints", new JSONObject(definition.constraints));
+            preferences.edit()
+                    .putString(key(name, version), stored.toString())
+                    .putInt(name, version)
+                    .commit();
+        } catch (JSONException e) { Log.e(TAG, "could not store worker " + name, e); }
+
+        definitions.put(key(name, version), definition);
+        definitions.put(name, definition);
+        return definition;
+
+    }
+
+    /**
+     * Reads the latest definition of every worker into memory, so looking them up never waits for the preferences
+     */
+    void load() {
+        for (Map.Entry<String, ?> entry : preferences.getAll().entrySet())
+            if(entry.getValue() instanceof Integer) get(entry.getKey());
+    }
+
+    /**
+     * @param name the worker's name
+     * @return the latest definition of the worker or null if it was never registered
+     */
+    @Nullable
+    Definition get(String name) {
+        Definition definition = definitions.get(name);
+        if(definition != null) return definition;
+        int version = preferences.getInt(name, 0);
+        if(version == 0) return null;
+        definition = get(name, version);
+        if(definition != null) definitions.put(name, definition);
+        return definition;
+    }
+
+    /**
+     * @param name the worker's name
+     * @param version the definition version
+     * @return the definition or null if this version is unknown
+     */
+    @Nullable
+    Definition get(String name, int version) {
+        String key = key(name, version);
+        Definition definition = definitions.get(key);
+        if(definition != null) return definition;
+        String stored = preferences.getString(key, null);
+        if(stored == null) return null;
+        try {
+            JSONObject json = new JSONObject(stored);
+            JSONObject constraints = json.optJSONObject("constraints");
+            definition = new Definition(name, version, toMap(json.getJSONObject("worker")), constraints != null ? toMap(constraints) : null);
+        } catch (JSONException e) {
+            Log.e(TAG, "could not read worker " + key, e);
+            return null;
+        }
+        definitions.put(key, definition);
+        return definition;
+    }
+
+    private static String key(String name, int version) {
+        return name + "@" + version;
+    }
+
+    /**
+     * Numbers coming from JS are doubles and numbers read back from JSON can be integers,
+     * so definitions are compared and stored with whole numbers as integers, null values are dropped
+     * since JSON does not keep them either
+     */
+    @Nullable
+    private static Map<String, Object> normalize(@Nullable Map<String, Object> map) {
+        if(map == null) return null;
+        HashMap<String, Object> normalized = new HashMap<>();
+        for (Map.Entry<String, Object> entry : map.entrySet()) {
+            Object value = entry.getValue();
+            if(value == null) continue;
+            if(value instanceof Double && (Double) value == Math.rint((Double) value) && Math.abs((Double) value) < Integer.MAX_VALUE)
+                value = ((Double) value).intValue();
+            normalized.put(entry.getKey(), value);
+        }
+        return normalized;
+    }
+
+    private static Map<String, Object> toMap(JSONObject json) throws JSONException {
+        HashMap<String, Object> map = new HashMap<>();
+        Iterator<String> keys = json.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            map.put(key, json.isNull(key) ? null : json.get(key));
+        }
+        return normalize(map);
+    }
+
+    private static boolean equals(@Nullable Map<String, Object> a, @Nullable Map<String, Object> b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+}
@@ -0,0 +1,133 @@
+package com.backgroundworker;
+
+import androidx.work.ListenableWorker.Result;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.reactivex.Single;
+import io.reactivex.disposables.Disposable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The registry must not grow with the works it resolved, and must resolve every work once, in the order
+ * its results arrive. How fast it resolves them is measured by CompletionBenchmark.
+ */
+public class CompletionRegistryTest {
+
+    private static final int WORKS = 10000;
+
+    @Test
+    public void completedWorksLeaveNoEntries() {
+        AtomicInteger resolved = new AtomicInteger();
+        for (int i = 0; i < WORKS; i++) register("completed" + i, resolved);
+        assertEquals(WORKS, CompletionRegistry.size());
+        for (int i = 0; i < WORKS; i++) assertTrue(CompletionRegistry.complete("completed" + i, 0, "\"value\"", "success"));
+        assertEquals(0, CompletionRegistry.size());
+        assertEquals(WORKS, resolved.get());
+    }
+
+    @Test
+    public void disposedWorksLeaveNoEntries() {
+        AtomicInteger done = new AtomicInteger();
+        List<Disposable> works = new ArrayList<>(WORKS);
+        for (int i = 0; i < WORKS; i++) {
+            String id = "disposed" + i;
+            works.add(Single.<Result>create(emitter -> CompletionRegistry.register(id, 0, emitter, (value, result) -> Result.success(), done::incrementAndGet)).subscribe());
+        }
+        for (Disposable work : works) work.dispose();
+        assertEquals(0, CompletionRegistry.size());
+        assertEquals(WORKS, done.get());
+        assertFalse(CompletionRegistry.complete("disposed0", 0, null, "success"));
+    }
+
+    @Test
+    public void resolvedWorksRunOnDoneOnce() {
+        AtomicInteger done = new AtomicInteger();
+        Single.<Result>create(emitter -> CompletionRegistry.register("once", 0, emitter, (value, result) -> Result.success(), done::incrementAndGet)).subscribe();
+        assertTrue(CompletionRegistry.complete("once", 0, null, "success"));
+        assertFalse(CompletionRegistry.complete("once", 0, null, "success"));
+        assertEquals(1, done.get());
+    }
+
+    @Test
+    public void throwingResolversFailTheWork() {
+        AtomicInteger failed = new AtomicInteger();
+        Single.<Result>create(emitter -> CompletionRegistry.register("throwing", 0, emitter, (value, result) -> {
+            throw new IllegalStateException("output too large");
+        })).subscribe(result -> {}, error -> failed.incrementAndGet());
+        assertTrue(CompletionRegistry.complete("throwing", 0, "\"value\"", "success"));
+        assertEquals(1, failed.get());
+        assertFalse(CompletionRegistry.complete("throwing", 0, "\"value\"", "success"));
+    }
+
+    @Test
+    public void lateResultsOfEarlierAttemptsAreIgnored() {
+        AtomicInteger resolved = new AtomicInteger();
+        Single.<Result>create(emitter -> CompletionRegistry.register("attempts", 1, emitter, (value, result) -> Result.success()))
+                .subscribe(result -> resolved.incrementAndGet());
+        assertFalse(CompletionRegistry.complete("attempts", 0, "\"timeout\"", "retry"));
+        assertEquals(0, resolved.get());
+        assertTrue(CompletionRegistry.complete("attempts", 1, "\"value\"", "success"));
+        assertEquals(1, resolved.get());
+        assertEquals(0, CompletionRegistry.size());
+    }
+
+    @Test
+    public void worksResolveInTheOrderTheirResultsArrive() {
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < WORKS / 10; i++) {
+            String id = "ordered" + i;
+            ids.add(id);
+            Single.<Result>create(emitter -> CompletionRegistry.register(id, 0, emitter, (value, result) -> Result.success()))
+                    .subscribe(result -> order.add(id));
+        }
+        Collections.shuffle(ids, new Random(42));
+        for (String id : ids) assertTrue(CompletionRegistry.complete(id, 0, null, "success"));
+        assertEquals(ids, order);
+        assertEquals(0, CompletionRegistry.size());
+    }
+
+    @Test
+    public void concurrentResultsResolveEachWorkOnce() throws Exception {
+        int threads = 8;
+        AtomicInteger resolved = new AtomicInteger();
+        AtomicInteger completed = new AtomicInteger();
+        for (int i = 0; i < WORKS; i++) register("concurrent" + i, resolved);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+        // every thread sends the result of every work, like JS answering twice, or a timeout racing JS
+        for (int t = 0; t < threads; t++) futures.add(executor.submit(() -> {
+            start.await();
+            for (int i = 0; i < WORKS; i++) if(CompletionRegistry.complete("concurrent" + i, 0, null, "success")) completed.incrementAndGet();
+            return null;
+        }));
+        start.countDown();
+        for (Future<?> future : futures) future.get(30, TimeUnit.SECONDS);
+        executor.shutdown();
+        assertEquals(WORKS, completed.get());
+        assertEquals(WORKS, resolved.get());
+        assertEquals(0, CompletionRegistry.size());
+    }
+
+    private static void register(String id, AtomicInteger resolved) {
+        Single.<Result>create(emitter -> CompletionRegistry.register(id, 0, emitter, (value, result) -> Result.success()))
+                .subscribe(result -> resolved.incrementAndGet());
+    }
+
+}
@@ -1,10 +1,16 @@
 import { NativeModules, AppRegistry, AppState, NativeAppEventEmitter, EmitterSubscription } from "react-native"
 
-interface GenericWorker<T extends "periodic"|"queue"> {
+interface GenericWorker<T extends "periodic"|"queue"|"native"> {
     type: T
     name: string,
     timeout?: number,
     foregroundBehaviour?: "headlessTask" | "foreground" | "blocking",
+    keepAlive?: number,
+    concurrency?: number,
+    prewarm?: boolean,
+    backoffPolicy?: "exponential" | "linear",
+    backoffDelay?: number,
+    maxAttempts?: number,
     constraints?: {
         network?: "connected" | "metered" | "notRoaming" | "unmetered" | "notRequired",
         battery?: "charging" | "notLow" | "notRequired",
@@ -17,51 +23,162 @@ interface GenericWorker<T extends "periodic"|"queue"> {
     },
 }
 
+/**
+ * Handed to the workflow along with its payload
+ * progress reports how far the work is, a number or an object with a percent field, from 0 to 100, is also shown on the notification
+ * signal aborts once the work is cancelled, stopped by the system or timed out, so it can be handed to fetch
+ */
+export type WorkContext = { id: string, progress: (progress: any) => void, signal: AbortSignal }
+
+/**
+ * json payloads and values are serialized, raw ones are strings handed over untouched, like base64 data,
+ * and file ones are paths to files that are never copied
+ */
+export type PayloadType = "json" | "raw" | "file"
+
+export type Priority = "high" | "normal" | "low"
+
 interface QueueWorker<P,V,T extends "queue"> extends GenericWorker<T> {
-    workflow: (payload: P) => Promise<{ result: "success" | "failure" | "retry", value: V }>
+    workflow: (payload: P, work: WorkContext) => Promise<{ result: "success" | "failure" | "retry", value: V }>
+    dedup?: "last" | "merge" | "concat",
+    priority?: Priority,
+    payloadType?: PayloadType,
     repeatInterval?: never,
 }
 
 export const isQueueWorker = (worker: any): worker is QueueWorker<any,any,"queue"> => worker.type && worker.type==="queue"
 
+type BatchOptions = {
+    maxBatchSize: number,
+    maxBatchDelay?: number,
+}
+
+interface BatchQueueWorker<P,V,T extends "queue"> extends GenericWorker<T> {
+    batch: BatchOptions,
+    priority?: Priority,
+    workflow: (payloads: P[], work: WorkContext) => Promise<{ result: "success" | "failure" | "retry", value: V }[]>
+    repeatInterval?: never,
+}
+
+export const isBatchQueueWorker = (worker: any): worker is BatchQueueWorker<any,any,"queue"> => isQueueWorker(worker) && !!(worker as any).batch
+
 interface PeriodicWorker<T extends "periodic"> extends GenericWorker<T> {
-    workflow: () => Promise<void>,
+    workflow: (work: WorkContext) => Promise<void>,
     repeatInterval?: number,
+    shortInterval?: boolean,
+    flexInterval?: number,
+    policy?: "keep" | "update" | "replace",
 }
 
 export const isPeriodicWorker = (worker: any): worker is PeriodicWorker<"periodic"> => worker.type && worker.type==="periodic"
 
-export type Worker<P,V,T extends "queue"|"periodic"> = T extends "queue" ? QueueWorker<P,V,T> : T extends "periodic" ? PeriodicWorker<T> : never
+/**
+ * The value of a native work, the response's status and body
+ */
+export type HttpResponse = { status: number, body: string }
+
+/**
+ * Native workers send each payload as the body of an HTTP request, entirely on the native side, JS is never woken up
+ * onResults receives the results of the works finished while the app is running, in batches
+ */
+interface NativeWorker<T extends "native"> extends Pick<GenericWorker<T>, "type" | "name" | "timeout" | "backoffPolicy" | "backoffDelay" | "maxAttempts" | "constraints"> {
+    request: { url: string, method?: string, headers?: { [header: string]: string }, contentType?: string },
+    retryOn?: number[],
+    payloadType?: PayloadType,
+    dedup?: "last" | "merge" | "concat",
+    onResults?: (results: { [id: string]: WorkInfo<HttpResponse> }) => void,
+}
+
+export const isNativeWorker = (worker: any): worker is NativeWorker<"native"> => worker.type && worker.type==="native"
+
+export type Worker<P,V,T extends "queue"|"periodic"|"native"> = T extends "queue" ? QueueWorker<P,V,T> | BatchQueueWorker<P,V,T> : T extends "periodic" ? PeriodicWorker<T> : T extends "native" ? NativeWorker<T> : never
+
+type JSWorker<P,V> = QueueWorker<P,V,"queue"> | BatchQueueWorker<P,V,"queue"> | PeriodicWorker<"periodic">
 
 const registeredWorkers: Map<string, EmitterSubscription> = new Map();
 
+const runningWorks: Map<string, AbortController> = new Map()
+const payloadTypes: Map<string, PayloadType> = new Map()
+
+const encode = (worker: string, payload: any): string | undefined =>
+    (payloadTypes.get(worker) || "json")==="json" ? JSON.stringify(payload) : payload
+let cancelSubscription: EmitterSubscription | undefined
+
+const nativeResultListeners: Map<string, (results: { [id: string]: WorkInfo<HttpResponse> }) => void> = new Map()
+let nativeResultsSubscription: EmitterSubscription | undefined
+
+// synchronous native calls are not available while debugging remotely, the first one that throws turns them off
+let syncCalls = true
+
+/**
+ * Calls one of the synchronous native methods, which run straight on the JS thread instead of going through the bridge queue
+ * @param method the synchronous method
+ * @param args the method's arguments
+ * @returns the method's result, or null if the asynchronous method should be called instead
+ */
+const callSync = <R>(method: string, ...args: any[]): R | null => {
+    if(!syncCalls) return null
+    try { return NativeModules.BackgroundWorker[method](...args) }
+    catch(error) {
+        syncCalls = false
+        return null
+    }
+}
+
+// sends the workflow's result back to the attempt of the native work it ran for
+const complete = (id: string, attempt: number, value: any, result: "success" | "failure" | "retry") => {
+    if(!callSync<boolean>("resultSync", id, value, result, attempt)) NativeModules.BackgroundWorker.result(id, value, result, attempt)
+}
+
 /**
  * Function used to schedule workers
  * If the worker is periodic, it will be registered right away and should start ASAP,
  * if the worker is queued, it`s information is stored on the native side because each enqueue is registered as a one time work request
  * @param worker the worker information to be scheduled
  */
-function setWorker<T extends "queue"|"periodic",P=any,V=any>(worker: Worker<P,V,T>): Promise<T extends "periodic" ? string:void> {
+function setWorker<T extends "queue"|"periodic"|"native",P=any,V=any>(worker: Worker<P,V,T>): Promise<T extends "periodic" ? string:void> {
 
-    const { workflow, constraints, notification, ..._worker } = worker
-    const workerConfiguration = { repeatInterval: 15, timeout: 10, foregroundBehaviour: "blocking", ..._worker, ...notification }
+    if(isNativeWorker(worker)) return setNativeWorker(worker)
 
-    const work = async (data: { id: string, payload: string }) => {
+    const { workflow, constraints, notification, batch, ..._worker } = worker as JSWorker<P,V> & { batch?: BatchOptions }
+    const workerConfiguration = { repeatInterval: 15, timeout: 10, foregroundBehaviour: "blocking", ..._worker, ...notification, ...batch }
+    const payloadType: PayloadType = isQueueWorker(worker) && !isBatchQueueWorker(worker) && worker.payloadType || "json"
+    const json = payloadType==="json"
+    payloadTypes.set(worker.name, payloadType)
+
+    const work = async (data: { id: string, attempt: number, payload: string }) => {
+        const controller = new AbortController()
+        runningWorks.set(data.id, controller)
+        const context: WorkContext = { id: data.id, progress: (_progress) => progress(data.id, _progress), signal: controller.signal }
         try {
             // if worker is periodic, it has no return value
             if(isPeriodicWorker(worker)) {
-                await worker.workflow()
-                NativeModules.BackgroundWorker.result(data.id, JSON.stringify(null), "success")
+                await worker.workflow(context)
+                complete(data.id, data.attempt, JSON.stringify(null), "success")
+            }
+            // if worker is batched, the payload is the array of queued items and each one gets its own result
+            else if(isBatchQueueWorker(worker)) {
+                const items: { id: string, payload?: string }[] = JSON.parse(data.payload)
+                const results = await worker.workflow(items.map((item) => item.payload===undefined ? undefined : JSON.parse(item.payload)), context)
+                const itemResults = items.map((item, index) => ({
+                    id: item.id,
+                    result: results[index] ? results[index].result : "failure",
+                    value: JSON.stringify(results[index] ? results[index].value : null),
+                }))
+                complete(data.id, data.attempt, JSON.stringify(itemResults), "success")
             }
             // if worker is queue, capture it`s return value to save it
             else if(isQueueWorker(worker)) {
-                const { result, value } = await worker.workflow(JSON.parse(data.payload))
-                NativeModules.BackgroundWorker.result(data.id, JSON.stringify(value), result)
+                const { result, value } = await worker.workflow(json ? JSON.parse(data.payload) : data.payload, context)
+                complete(data.id, data.attempt, json ? JSON.stringify(value) : value, result)
             }
             else { throw "INCOMPATIBLE_TYPE" }
         }
         catch(error) {
-            NativeModules.BackgroundWorker.result(data.id, JSON.stringify(error), "failure")
+            complete(data.id, data.attempt, JSON.stringify(error), "failure")
+        }
+        finally {
+            runningWorks.delete(data.id)
         }
     }
 
@@ -70,18 +187,23 @@ function setWorker<T extends "queue"|"periodic",P=any,V=any>(worker: Worker<P,V,
         registeredWorkers.delete(worker.name)
     }
     
+    // the native side tells when a running work is cancelled, stopped or timed out, one subscription serves every worker
+    if(!cancelSubscription) cancelSubscription = NativeAppEventEmitter.addListener("workCancelled", (data: { id: string }) =>
+        runningWorks.get(data.id)?.abort())
+
     AppRegistry.registerHeadlessTask(worker.name, () => work)
     const subscription = NativeAppEventEmitter.addListener(worker.name, (data) => {
 
         // if the app is in foreground we should see for the foreground behaviour
-        // if the behaviour is blocking, task is blocked and is scheduled to retry
-        // if the behaviour is foreground, the task starts in normal mode
+        // the native side already retries blocked works before emitting them, this covers the app coming to foreground meanwhile
+        // if the behaviour is blocking, task is blocked and is scheduled to retry, unless it has high priority
+        // if the behaviour is foreground, or a high priority task was not blocked, the task starts in normal mode
         if(AppState.currentState==="active") {
-            if(workerConfiguration.foregroundBehaviour==="blocking") {
-                NativeModules.BackgroundWorker.result(data.id, JSON.stringify(null), "retry")
+            if(workerConfiguration.foregroundBehaviour==="blocking" && data.priority!=="high") {
+                complete(data.id, data.attempt, JSON.stringify("blocked"), "retry")
                 return
             }
-            if(workerConfiguration.foregroundBehaviour==="foreground") {
+            if(workerConfiguration.foregroundBehaviour!=="headlessTask") {
                 work(data)
                 return
             }
@@ -97,12 +219,103 @@ function setWorker<T extends "queue"|"periodic",P=any,V=any>(worker: Worker<P,V,
 
 }
 
+/**
+ * Registers a native worker, its request spec is flattened since the native side only keeps flat worker definitions
+ * @param worker the native worker information
+ */
+function setNativeWorker(worker: NativeWorker<"native">): Promise<any> {
+
+    const { request, retryOn, onResults, constraints, ..._worker } = worker
+    payloadTypes.set(worker.name, worker.payloadType || "json")
+
+    if(onResults) nativeResultListeners.set(worker.name, onResults)
+    else nativeResultListeners.delete(worker.name)
+    if(!nativeResultsSubscription) nativeResultsSubscription = NativeAppEventEmitter.addListener("nativeResults",
+        (data: { worker: string, infos: { [id: string]: WorkInfo<string> } }) => nativeResultListeners.get(data.worker)?.(parseInfos<HttpResponse>(data.infos)))
+
+    return NativeModules.BackgroundWorker.registerWorker({
+        timeout: 10,
+        ..._worker,
+        url: request.url,
+        method: request.method || "POST",
+        headers: JSON.stringify(request.headers || {}),
+        contentType: request.contentType,
+        retryOn: retryOn && retryOn.join(","),
+        notify: !!onResults,
+    }, constraints || {})
+
+}
+
 /**
  * This function enqueue a payload to be processed by a registered queue worker
+ * With a uniqueKey, the work is unique among the worker's works with the same key and policy decides what happens to an existing one
  * @param work The worker name and payload to be scheduled
  */
-function enqueue(work: { worker: string, payload?: any }): Promise<string> {
-    return NativeModules.BackgroundWorker.enqueue(work.worker, JSON.stringify(work.payload))
+function enqueue(work: { worker: string, payload?: any, uniqueKey?: string, policy?: "keep" | "replace" | "append" | "appendOrReplace", priority?: Priority }): Promise<string> {
+    if(work.uniqueKey === undefined) {
+        const payload = encode(work.worker, work.payload)
+        const id = callSync<string>("enqueueSync", work.worker, payload, work.priority || null)
+        // the asynchronous enqueue also reports why the synchronous one failed
+        return id!=null ? Promise.resolve(id) : NativeModules.BackgroundWorker.enqueue(work.worker, payload, work.priority || null)
+    }
+    return NativeModules.BackgroundWorker.enqueueUnique(work.worker, work.uniqueKey, encode(work.worker, work.payload), work.policy || null, work.priority || null)
+}
+
+/**
+ * This function enqueue many payloads at once to be processed by a registered queue worker,
+ * all works are scheduled in a single native call
+ * @param work The worker name and payloads to be scheduled
+ */
+function enqueueBatch(work: { worker: string, payloads: any[], priority?: Priority }): Promise<string[]> {
+    return NativeModules.BackgroundWorker.enqueueBatch(work.worker, work.payloads.map((payload) => encode(work.worker, payload)), work.priority || null)
+}
+
+/**
+ * Limits how many works of a priority lane run at the same time, works over the limit wait on the native side
+ * The high lane is never limited, the normal lane has no limit and the low lane runs one work at a time unless changed
+ * Limits only last while the app process is alive, so set them when your bundle loads
+ * @param lane the lane to be limited
+ * @param limit how many works of the lane can run at the same time
+ */
+function setLaneConcurrency(lane: "normal" | "low", limit: number): Promise<void> {
+    return NativeModules.BackgroundWorker.setLaneConcurrency(lane, limit)
+}
+
+export type ChainStep = { worker: string, payload?: any, key?: string }
+
+export type GraphStep = { key: string, worker: string, payload?: any, after?: string[] }
+
+const toNativeStep = <S extends ChainStep>(step: S) => ({ ...step, payload: step.payload === undefined ? undefined : encode(step.worker, step.payload) })
+
+/**
+ * This function enqueues a pipeline in a single native call, each stage runs once the previous one succeeded
+ * and receives its value as payload, a stage with many parallel steps hands the next one their values keyed by the steps' keys
+ * Steps enqueued with a payload of their own keep it instead
+ * @param stages the stages in order, each one is a step or an array of steps that run in parallel, keys default to the worker's name
+ * @returns the works' ids keyed by the steps' keys
+ */
+function enqueueChain(stages: (ChainStep | ChainStep[])[]): Promise<{ [key: string]: string }> {
+    return NativeModules.BackgroundWorker.enqueueChain(stages.map((stage) => Array.isArray(stage) ? stage.map(toNativeStep) : toNativeStep(stage)))
+}
+
+/**
+ * This function enqueues a graph of steps in a single native call, a step runs once every step listed on after succeeded,
+ * a step with a single dependency receives its value as payload and a step with many receives their values keyed by their keys
+ * @param steps the steps, each one must come after the steps it depends on
+ * @returns the works' ids keyed by the steps' keys
+ */
+function enqueueGraph(steps: GraphStep[]): Promise<{ [key: string]: string }> {
+    return NativeModules.BackgroundWorker.enqueueGraph(steps.map(toNativeStep))
+}
+
+/**
+ * Reports the progress of a running work, it reaches info, the listeners and the notification
+ * Reports are throttled on the native side, so it can be called as often as needed
+ * @param id the running work's id, handed to the workflow
+ * @param progress anything serializable, a number or an object with a percent field is shown on the notification
+ */
+function progress(id: string, progress: any): void {
+    NativeModules.BackgroundWorker.progress(id, JSON.stringify(progress))
 }
 
 /**
@@ -113,43 +326,192 @@ function cancel(id: string): Promise<void> {
     return NativeModules.BackgroundWorker.cancel(id)
 }
 
+/**
+ * Cancels many works at once
+ * @param ids works' ids to be canceled
+ */
+function cancelMany(ids: string[]): Promise<void> {
+    return NativeModules.BackgroundWorker.cancelMany(ids)
+}
+
+/**
+ * Cancels every work of a worker
+ * @param worker the worker's name
+ */
+function cancelAll(worker: string): Promise<void> {
+    return NativeModules.BackgroundWorker.cancelAll(worker)
+}
+
 export type WorkInfo<V> = {
     state: "failed" | "blocked" | "running" | "enqueued" | "cancelled" | "succeeded" | "unknown",
     attemptCount: number,
     value: V,
+    progress?: any,
+    valueType?: PayloadType,
+    finishedAt?: number,
 }
 
+// raw and file values are marked by the native side, since they must not be parsed
+const parseInfo = <V>(_info: WorkInfo<string>): WorkInfo<V> =>
+    ({ ..._info, value: _info.valueType ? _info.value : JSON.parse(_info.value), progress: _info.progress==null ? undefined : JSON.parse(_info.progress) })
+
 /**
  * Returns the WorkInfo object for the requested work
  * @param id requisited work's id
  */
 function info<V>(id: string): Promise<WorkInfo<V>> {
+    // finished works and batched payloads are answered synchronously when their info is in memory
+    const _info = callSync<WorkInfo<string>>("infoSync", id)
+    if(_info) return Promise.resolve(parseInfo<V>(_info))
     return new Promise((resolve,reject) => {
         NativeModules.BackgroundWorker.info(id)
-            .then((_info: WorkInfo<string>) => resolve({ ..._info, value: JSON.parse(_info.value) }))
+            .then((_info: WorkInfo<string>) => resolve(parseInfo<V>(_info)))
             .catch(reject)
     })
 }
 
+// fills a single object, spreading the accumulator on every id would copy it once per work
+const parseInfos = <V>(_infos: { [id: string]: WorkInfo<string> }): { [id: string]: WorkInfo<V> } => {
+    const infos: { [id: string]: WorkInfo<V> } = {}
+    for(const id of Object.keys(_infos)) infos[id] = parseInfo<V>(_infos[id])
+    return infos
+}
+
+/**
+ * Returns the WorkInfo objects for many works at once, works that are not found are left out
+ * @param ids requisited works' ids
+ */
+function infos<V>(ids: string[]): Promise<{ [id: string]: WorkInfo<V> }> {
+    return NativeModules.BackgroundWorker.infos(ids).then(parseInfos)
+}
+
+/**
+ * Returns the WorkInfo objects for every work of a worker
+ * @param worker the worker's name
+ */
+function infosByWorker<V>(worker: string): Promise<{ [id: string]: WorkInfo<V> }> {
+    return NativeModules.BackgroundWorker.infosByWorker(worker).then(parseInfos)
+}
+
+/**
+ * Returns the results kept on the native result store for the works of a worker
+ * @param worker the worker's name
+ * @param since only works finished after this timestamp, in milliseconds, are returned
+ */
+function results<V>(worker: string, since: number = 0): Promise<{ [id: string]: WorkInfo<V> }> {
+    return NativeModules.BackgroundWorker.results(worker, since).then(parseInfos)
+}
+
+/**
+ * Tunes WorkManager, the options are persisted and only take effect the next time WorkManager is initialized, usually the next app start
+ * @param options executorThreads is how many works run at the same time and maxSchedulerLimit how many works are handed to the system at once
+ */
+function configureWorkManager(options: { executorThreads?: number, maxSchedulerLimit?: number }): void {
+    NativeModules.BackgroundWorker.configureWorkManager(options)
+}
+
+/**
+ * Bounds the native result store
+ * @param options ttl is how many seconds results are kept and maxSize how many bytes they can take
+ */
+function configureResults(options: { ttl: number, maxSize: number }): void {
+    NativeModules.BackgroundWorker.configureResults(options.ttl, options.maxSize)
+}
+
+const infoListeners: Map<string, Set<(info: WorkInfo<string>) => void>> = new Map()
+let infoSubscription: EmitterSubscription | undefined
+
 /**
  * Registers a listener to watch for changes on work's state
+ * All listeners share a single native channel that sends the changes of every watched work together
  * @param id requisited work's id
  * @param callback function to be called when work's state change
  */
 function addListener<V>(id: string,callback: (info: WorkInfo<V>) => void): () => void {
-    NativeModules.BackgroundWorker.addListener(id)
-    const subscription = NativeAppEventEmitter.addListener(id+"info", (_info: WorkInfo<string>) =>
-        callback({ ..._info, value: JSON.parse(_info.value) }))
+
+    if(!infoSubscription) infoSubscription = NativeAppEventEmitter.addListener("workInfos", (infos: { [id: string]: WorkInfo<string> }) =>
+        Object.keys(infos).forEach((_id) => infoListeners.get(_id)?.forEach((listener) => listener(infos[_id]))))
+
+    const listener = (_info: WorkInfo<string>) => callback(parseInfo<V>(_info))
+    if(!infoListeners.has(id)) infoListeners.set(id, new Set())
+    infoListeners.get(id)?.add(listener)
+    NativeModules.BackgroundWorker.subscribe(id)
+
+    return () => {
+        const listeners = infoListeners.get(id)
+        if(!listeners?.delete(listener)) return
+        if(!listeners.size) infoListeners.delete(id)
+        NativeModules.BackgroundWorker.unsubscribe(id)
+    }
+
+}
+
+/**
+ * Returns how the headless tasks have been started since the app started
+ * coldStarts had to wait for react to start, warmStarts ran on a live react context
+ * and dispatches were handed to a live headless service
+ */
+function headlessStats(): Promise<{ coldStarts: number, warmStarts: number, dispatches: number }> {
+    return NativeModules.BackgroundWorker.headlessStats()
+}
+
+export type Histogram = { count: number, mean: number, max: number, p50: number, p90: number, p99: number }
+
+export type WorkerMetrics = {
+    enqueued: number,
+    started: number,
+    emitted: number,
+    succeeded: number,
+    failed: number,
+    retried: number,
+    blockedRetries: number,
+    queueDepth: number,
+    waitTime: Histogram,
+    runTime: Histogram,
+}
+
+/**
+ * Returns the counters and latency histograms of every worker, keyed by the worker's name
+ * waitTime goes from enqueue to the work starting and runTime from the work reaching JS to its result, both in milliseconds
+ * Metrics are kept in memory, so they only cover the current process
+ */
+function getMetrics(): Promise<{ [worker: string]: WorkerMetrics }> {
+    return NativeModules.BackgroundWorker.getMetrics()
+}
+
+/**
+ * Receives the metrics of every worker periodically
+ * @param interval milliseconds between two calls
+ * @param callback function to be called with the metrics
+ */
+function watchMetrics(interval: number, callback: (metrics: { [worker: string]: WorkerMetrics }) => void): () => void {
+    const subscription = NativeAppEventEmitter.addListener("backgroundWorkerMetrics", callback)
+    NativeModules.BackgroundWorker.setMetricsInterval(interval)
     return () => {
         subscription.remove()
-        NativeModules.BackgroundWorker.removeListener(id)
+        NativeModules.BackgroundWorker.setMetricsInterval(0)
     }
 }
 
 export default {
     setWorker,
     enqueue,
+    enqueueBatch,
+    enqueueChain,
+    enqueueGraph,
+    progress,
     cancel,
+    cancelMany,
+    cancelAll,
     info,
+    infos,
+    infosByWorker,
+    results,
+    configureResults,
+    configureWorkManager,
     addListener,
+    headlessStats,
+    setLaneConcurrency,
+    getMetrics,
+    watchMetrics,
 }
\ No newline at end of file